@@ -290,6 +290,18 @@ public class Template extends Plugin implements Listener
 
 		boolean isDev = Versioning.isDevelopment();
 
+		if ( fwParams.get( "bundles" ) != null && !fwParams.get( "bundles" ).isEmpty() )
+			for ( String bundle : fwParams.get( "bundles" ).split( "," ) )
+			{
+				String url = site.getAssetBundles().url( bundle.trim() );
+				if ( url == null )
+					getLogger().warning( String.format( "The asset bundle '%s' is not configured for site '%s'", bundle.trim(), site.getId() ) );
+				else if ( url.endsWith( ".css" ) )
+					ob.append( "<link rel=\"stylesheet\" type=\"text/css\" href=\"" + url + "\" />\n" );
+				else
+					ob.append( "<script type=\"text/javascript\" src=\"" + url + "\"></script>\n" );
+			}
+
 		for ( String pack : headers )
 			try
 			{
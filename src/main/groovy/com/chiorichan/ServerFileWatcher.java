@@ -23,7 +23,10 @@ import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.chiorichan.lang.ApplicationException;
 import com.chiorichan.lang.StartupException;
@@ -70,14 +73,14 @@ public class ServerFileWatcher implements Runnable, ServiceManager, TaskRegistra
 	{
 		WatchKey key;
 		Path path;
-		EventCallback callback;
+		List<EventCallback> callbacks = new CopyOnWriteArrayList<>();
 		boolean recursive;
 
 		WatchRef( WatchKey key, Path path, EventCallback callback, boolean recursive )
 		{
 			this.key = key;
 			this.path = path;
-			this.callback = callback;
+			this.callbacks.add( callback );
 			this.recursive = recursive;
 		}
 
@@ -102,16 +105,21 @@ public class ServerFileWatcher implements Runnable, ServiceManager, TaskRegistra
 				boolean isDirectory = Files.isDirectory( child, LinkOption.NOFOLLOW_LINKS );
 
 				if ( recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && isDirectory )
-					registerRecursive( child, callback );
-
-				TriggerRef ref = triggerReferences.get( child.toString() + "--" + event.kind().name() );
+					for ( EventCallback callback : callbacks )
+						registerRecursive( child, callback );
 
-				if ( ref == null )
-					triggerReferences.put( child.toString() + "--" + event.kind().name(), new TriggerRef( event.kind(), child, isDirectory, callback ) );
-				else
+				for ( EventCallback callback : callbacks )
 				{
-					ref.epoch = Timings.epoch();
-					ref.called = false;
+					String refKey = child.toString() + "--" + event.kind().name() + "--" + System.identityHashCode( callback );
+					TriggerRef ref = triggerReferences.get( refKey );
+
+					if ( ref == null )
+						triggerReferences.put( refKey, new TriggerRef( event.kind(), child, isDirectory, callback ) );
+					else
+					{
+						ref.epoch = Timings.epoch();
+						ref.called = false;
+					}
 				}
 			}
 		}
@@ -139,7 +147,7 @@ public class ServerFileWatcher implements Runnable, ServiceManager, TaskRegistra
 
 	private final WatchService watcher;
 
-	private final Map<WatchKey, WatchRef> keys = Maps.newHashMap();
+	private final Map<WatchKey, WatchRef> keys = new ConcurrentHashMap<>();
 
 	private ServerFileWatcher()
 	{
@@ -197,25 +205,32 @@ public class ServerFileWatcher implements Runnable, ServiceManager, TaskRegistra
 	}
 
 	/**
-	 * Register the given directory with the WatchService
+	 * Register the given directory with the WatchService, a directory can be registered by more than one callback
 	 */
 	public void register( Path dir, EventCallback callback ) throws IOException
 	{
 		register( dir, callback, false );
 	}
 
-	private void register( Path dir, EventCallback callback, boolean recursive ) throws IOException
+	private synchronized void register( Path dir, EventCallback callback, boolean recursive ) throws IOException
 	{
 		WatchKey key = dir.register( watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY );
-		WatchRef ref = new WatchRef( key, dir, callback, recursive );
 
 		WatchRef prev = keys.get( key );
+		if ( prev != null && dir.equals( prev.path ) )
+		{
+			if ( !prev.callbacks.contains( callback ) )
+				prev.callbacks.add( callback );
+			prev.recursive = prev.recursive || recursive;
+			return;
+		}
+
 		if ( prev == null )
 			getLogger().fine( String.format( "Now watching directory '%s' for changes", dir ) );
-		else if ( !dir.equals( prev.path ) )
+		else
 			getLogger().fine( String.format( "Updated directory watch from '%s' to '%s'", prev.path, dir ) );
 
-		keys.put( key, ref );
+		keys.put( key, new WatchRef( key, dir, callback, recursive ) );
 	}
 
 	public void registerRecursive( File file, EventCallback callback )
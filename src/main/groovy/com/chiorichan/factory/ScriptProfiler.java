@@ -0,0 +1,235 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.factory;
+
+import com.chiorichan.AppConfig;
+import com.chiorichan.factory.api.Builtin;
+import com.chiorichan.factory.event.PostJSMinProcessor;
+import com.google.gson.GsonBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples {@link ScriptingFactory#eval(ScriptingContext)} and aggregates per script timings.
+ * Each sampled context records wall time, cpu time, allocated bytes, output size, and its nested includes.
+ * Timings are inclusive of nested includes.
+ * <p>
+ * Configured with {@code advanced.profiler.enabled} and {@code advanced.profiler.sampleRate}, the percentage of requests that get profiled.
+ */
+public class ScriptProfiler
+{
+	/**
+	 * Number of recent samples kept per script for calculating percentiles
+	 */
+	private static final int SAMPLE_SIZE = 512;
+
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private static final Map<String, ScriptStatistics> statistics = new ConcurrentHashMap<>();
+	private static final ThreadLocal<Node> current = new ThreadLocal<>();
+
+	public static boolean isEnabled()
+	{
+		return AppConfig.get().getBoolean( "advanced.profiler.enabled", false );
+	}
+
+	/**
+	 * Decides if the {@link ScriptingFactory} being created will be profiled
+	 *
+	 * @return True if profiling is enabled and this factory was sampled
+	 */
+	static boolean sample()
+	{
+		return isEnabled() && ThreadLocalRandom.current().nextInt( 100 ) < AppConfig.get().getInt( "advanced.profiler.sampleRate", 5 );
+	}
+
+	private static long cpuTime()
+	{
+		return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long allocatedBytes()
+	{
+		if ( threadBean instanceof com.sun.management.ThreadMXBean )
+			return ( ( com.sun.management.ThreadMXBean ) threadBean ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+		return 0;
+	}
+
+	static Node begin( ScriptingContext context )
+	{
+		Node node = new Node( current.get(), context.filename() == null || context.filename().isEmpty() ? "<no file>" : context.filename() );
+		if ( node.parent != null )
+			node.parent.children.add( node );
+		current.set( node );
+		return node;
+	}
+
+	static void end( Node node, ScriptingContext context )
+	{
+		node.wallTime = System.nanoTime() - node.wallTime;
+		node.cpuTime = cpuTime() - node.cpuTime;
+		node.allocatedBytes = allocatedBytes() - node.allocatedBytes;
+		node.outputSize = context.buffer().readableBytes();
+
+		current.set( node.parent );
+
+		statistics.computeIfAbsent( node.filename, ScriptStatistics::new ).record( node );
+	}
+
+	public static void reset()
+	{
+		statistics.clear();
+	}
+
+	public static Map<String, Object> toMap()
+	{
+		Map<String, Object> map = new LinkedHashMap<>();
+		for ( ScriptStatistics stats : statistics.values() )
+			map.put( stats.filename, stats.toMap() );
+		return map;
+	}
+
+	public static String toJson()
+	{
+		return new GsonBuilder().setPrettyPrinting().create().toJson( toMap() );
+	}
+
+	public static String toHtml()
+	{
+		Map<String, Object> tbl = new LinkedHashMap<>();
+
+		for ( ScriptStatistics stats : statistics.values() )
+			synchronized ( stats )
+			{
+				if ( stats.count == 0 )
+					continue;
+				long[] sorted = stats.sortedWallTimes();
+				tbl.put( stats.filename, Arrays.asList( stats.filename, String.valueOf( stats.count ), millis( percentile( sorted, 50 ) ), millis( percentile( sorted, 90 ) ), millis( percentile( sorted, 99 ) ), millis( stats.cpuTime / stats.count ), String.valueOf( stats.allocatedBytes / stats.count ), String.valueOf( stats.outputSize / stats.count ) ) );
+			}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append( "<style>.altrowstable { border-spacing: 12px; }</style>" );
+		sb.append( "<h1>Script Profiler</h1>" );
+		sb.append( "<p>Sampling " ).append( AppConfig.get().getInt( "advanced.profiler.sampleRate", 5 ) ).append( "% of requests, timings are inclusive of nested includes. Also available as <a href=\"/wisp/profiler.json\">JSON</a>.</p>" );
+		sb.append( Builtin.createTable( tbl, Arrays.asList( "Script", "Samples", "Wall p50", "Wall p90", "Wall p99", "Avg CPU", "Avg Allocated Bytes", "Avg Output Bytes" ) ) );
+		sb.append( String.format( "<p>JavaScript minifier cache: %s hits, %s misses, %s entries, %s pending.</p>", PostJSMinProcessor.hits(), PostJSMinProcessor.misses(), PostJSMinProcessor.size(), PostJSMinProcessor.pending() ) );
+		return sb.toString();
+	}
+
+	private static String millis( long nanos )
+	{
+		return String.format( "%.2fms", nanos / 1000000D );
+	}
+
+	private static long percentile( long[] sorted, int percentile )
+	{
+		if ( sorted.length == 0 )
+			return 0;
+		return sorted[Math.min( sorted.length - 1, sorted.length * percentile / 100 )];
+	}
+
+	/**
+	 * The profile of a single {@link ScriptingContext} evaluation
+	 */
+	public static class Node
+	{
+		private final Node parent;
+		private final List<Node> children = new ArrayList<>();
+		private final String filename;
+		private long wallTime = System.nanoTime();
+		private long cpuTime = cpuTime();
+		private long allocatedBytes = allocatedBytes();
+		private long outputSize;
+
+		private Node( Node parent, String filename )
+		{
+			this.parent = parent;
+			this.filename = filename;
+		}
+
+		public Map<String, Object> toMap()
+		{
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put( "filename", filename );
+			map.put( "wallTime", wallTime );
+			map.put( "cpuTime", cpuTime );
+			map.put( "allocatedBytes", allocatedBytes );
+			map.put( "outputSize", outputSize );
+			if ( children.size() > 0 )
+			{
+				List<Object> list = new ArrayList<>();
+				for ( Node child : children )
+					list.add( child.toMap() );
+				map.put( "includes", list );
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * Aggregated samples of a single script
+	 */
+	private static class ScriptStatistics
+	{
+		private final String filename;
+		private final long[] wallTimes = new long[SAMPLE_SIZE];
+		private long count;
+		private long cpuTime;
+		private long allocatedBytes;
+		private long outputSize;
+		private Node lastProfile;
+
+		ScriptStatistics( String filename )
+		{
+			this.filename = filename;
+		}
+
+		synchronized void record( Node node )
+		{
+			wallTimes[( int ) ( count % SAMPLE_SIZE )] = node.wallTime;
+			count++;
+			cpuTime += node.cpuTime;
+			allocatedBytes += node.allocatedBytes;
+			outputSize += node.outputSize;
+			lastProfile = node;
+		}
+
+		long[] sortedWallTimes()
+		{
+			long[] sorted = Arrays.copyOf( wallTimes, ( int ) Math.min( count, SAMPLE_SIZE ) );
+			Arrays.sort( sorted );
+			return sorted;
+		}
+
+		synchronized Map<String, Object> toMap()
+		{
+			long[] sorted = sortedWallTimes();
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put( "samples", count );
+			map.put( "wallTimeP50", percentile( sorted, 50 ) );
+			map.put( "wallTimeP90", percentile( sorted, 90 ) );
+			map.put( "wallTimeP99", percentile( sorted, 99 ) );
+			map.put( "wallTimeMax", sorted.length == 0 ? 0 : sorted[sorted.length - 1] );
+			map.put( "cpuTimeTotal", cpuTime );
+			map.put( "allocatedBytesTotal", allocatedBytes );
+			map.put( "outputSizeTotal", outputSize );
+			if ( lastProfile != null )
+				map.put( "lastProfile", lastProfile.toMap() );
+			return map;
+		}
+	}
+}
@@ -361,7 +361,7 @@ public class ScriptingContext implements ExceptionContext
 		return factory;
 	}
 
-	ScriptingContext factory( final ScriptingFactory factory )
+	public ScriptingContext factory( final ScriptingFactory factory )
 	{
 		this.factory = factory;
 
@@ -405,10 +405,10 @@ public class ScriptingContext implements ExceptionContext
 	public String read( boolean includeObj, boolean printErrors ) throws ScriptingException, MultipleException
 	{
 		ScriptingResult result = null;
-		if ( request != null )
-			result = request.getScriptingFactory().eval( this );
-		else if ( factory != null )
+		if ( factory != null )
 			result = factory.eval( this );
+		else if ( request != null )
+			result = request.getScriptingFactory().eval( this );
 		else
 			throw new IllegalArgumentException( "We can't read() this EvalContext unless you provide either the HttpRequestWrapper or ScriptingFactory." );
 
@@ -11,8 +11,10 @@ package com.chiorichan.factory;
 
 import com.chiorichan.AppConfig;
 import com.chiorichan.AppLoader;
+import com.chiorichan.event.AbstractEvent;
 import com.chiorichan.event.EventBus;
 import com.chiorichan.event.EventException;
+import com.chiorichan.event.EventHandlers;
 import com.chiorichan.event.Listener;
 import com.chiorichan.factory.event.PostEvalEvent;
 import com.chiorichan.factory.event.PostImageProcessor;
@@ -22,10 +24,12 @@ import com.chiorichan.factory.event.PreEvalEvent;
 import com.chiorichan.factory.event.PreLessProcessor;
 import com.chiorichan.factory.groovy.GroovyRegistry;
 import com.chiorichan.factory.parsers.PreIncludesParserWrapper;
-import com.chiorichan.factory.parsers.PreLinksParserWrapper;
-import com.chiorichan.helpers.Pair;
+import com.chiorichan.http.HttpRequestWrapper;
+import com.chiorichan.lang.ExceptionReport;
+import com.chiorichan.lang.MultipleException;
 import com.chiorichan.lang.ReportingLevel;
 import com.chiorichan.lang.ScriptingException;
+import com.chiorichan.logger.Log;
 import com.chiorichan.logger.LogSource;
 import com.chiorichan.services.ObjectContext;
 import com.chiorichan.utils.UtilEncryption;
@@ -39,15 +43,34 @@ import org.apache.commons.lang3.Validate;
 
 import java.io.File;
 import java.nio.charset.Charset;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ScriptingFactory implements LogSource
 {
 	private static final List<ScriptingRegistry> scripting = Lists.newCopyOnWriteArrayList();
 
+	private static final List<ScriptingProcessor> preProcessors = Lists.newCopyOnWriteArrayList();
+	private static final List<ScriptingProcessor> postProcessors = Lists.newCopyOnWriteArrayList();
+
+	/**
+	 * The processors matching each stage, content type and shell, rebuilt as new processors are registered
+	 */
+	private static final Map<String, ScriptingProcessor[]> dispatch = new ConcurrentHashMap<>();
+
 	static
 	{
 		new GroovyRegistry();
@@ -55,21 +78,24 @@ public class ScriptingFactory implements LogSource
 		/**
 		 * Register Pre-Processors
 		 */
-		register( new PreLinksParserWrapper() );
-		register( new PreIncludesParserWrapper() );
+		registerPreProcessor( new PreIncludesParserWrapper() );
 		if ( AppConfig.get().getBoolean( "advanced.processors.coffeeProcessorEnabled", true ) )
-			register( new PreCoffeeProcessor() );
+		{
+			PreCoffeeProcessor coffee = new PreCoffeeProcessor();
+			registerPreProcessor( coffee );
+			registerEvents( coffee );
+		}
 		if ( AppConfig.get().getBoolean( "advanced.processors.lessProcessorEnabled", true ) )
-			register( new PreLessProcessor() );
-		// register( new SassPreProcessor() );
+			registerPreProcessor( new PreLessProcessor() );
+		// registerPreProcessor( new SassPreProcessor() );
 
 		/**
 		 * Register Post-Processors
 		 */
 		if ( AppConfig.get().getBoolean( "advanced.processors.minifierJSProcessorEnabled", true ) )
-			register( new PostJSMinProcessor() );
+			registerPostProcessor( new PostJSMinProcessor() );
 		if ( AppConfig.get().getBoolean( "advanced.processors.imageProcessorEnabled", true ) )
-			register( new PostImageProcessor() );
+			registerPostProcessor( new PostImageProcessor() );
 	}
 
 	// For Web Use
@@ -90,11 +116,80 @@ public class ScriptingFactory implements LogSource
 		return new ScriptingFactory( binding );
 	}
 
+	/**
+	 * Registers the provided {@link PreEvalEvent} and {@link PostEvalEvent} listener.
+	 * Processors should prefer {@link #registerPreProcessor(ScriptingProcessor)} and {@link #registerPostProcessor(ScriptingProcessor)}.
+	 *
+	 * @param listener The listener
+	 */
 	public static void register( Listener listener )
+	{
+		registerEvents( listener );
+	}
+
+	/**
+	 * The eval events are only constructed and fired when something on the {@link EventBus} listens for them,
+	 * regardless of how the listener was registered
+	 */
+	private static boolean hasListeners( Class<? extends AbstractEvent> event )
+	{
+		return EventHandlers.getEventListeners( event ).getRegisteredListeners().length > 0;
+	}
+
+	private static void registerEvents( Listener listener )
 	{
 		EventBus.instance().registerEvents( listener, new ObjectContext( AppLoader.instances().get( 0 ) ) );
 	}
 
+	/**
+	 * Registers the provided {@link ScriptingProcessor} to be called before eval, in order of registration
+	 *
+	 * @param processor The processor
+	 */
+	public static void registerPreProcessor( ScriptingProcessor processor )
+	{
+		preProcessors.add( processor );
+		dispatch.clear();
+	}
+
+	/**
+	 * Registers the provided {@link ScriptingProcessor} to be called after eval, in order of registration
+	 *
+	 * @param processor The processor
+	 */
+	public static void registerPostProcessor( ScriptingProcessor processor )
+	{
+		postProcessors.add( processor );
+		dispatch.clear();
+	}
+
+	private static boolean matches( ScriptingProcessor processor, String contentType, String shell )
+	{
+		String[] contentTypes = processor.contentTypes();
+		String[] shells = processor.shells();
+
+		if ( contentTypes.length == 0 && shells.length == 0 )
+			return true;
+
+		for ( String type : contentTypes )
+			if ( type.endsWith( "/" ) ? contentType.startsWith( type ) : contentType.equals( type ) )
+				return true;
+
+		for ( String s : shells )
+			if ( shell.equals( s ) )
+				return true;
+
+		return false;
+	}
+
+	private static ScriptingProcessor[] processors( boolean post, ScriptingContext context )
+	{
+		String contentType = context.contentType() == null ? "" : context.contentType().toLowerCase();
+		String shell = context.shell() == null ? "" : context.shell().toLowerCase();
+
+		return dispatch.computeIfAbsent( ( post ? "post:" : "pre:" ) + contentType + ":" + shell, key -> ( post ? postProcessors : preProcessors ).stream().filter( processor -> matches( processor, contentType, shell ) ).toArray( ScriptingProcessor[]::new ) );
+	}
+
 	/**
 	 * Registers the provided ScriptingProcessing with the EvalFactory
 	 *
@@ -110,7 +205,18 @@ public class ScriptingFactory implements LogSource
 
 	private final ScriptBinding binding;
 
-	private final List<Pair<ByteBuf, StackType>> bufferStack = new LinkedList<>();
+	private static ExecutorService asyncExecutor = null;
+
+	private final List<BufferMark> bufferStack = new ArrayList<>();
+
+	private final Map<String, Future<String>> asyncIncludes = Maps.newLinkedHashMap();
+
+	private final String asyncToken = UtilEncryption.rand( 8 );
+
+	/**
+	 * Set on the factory evaluating an async include, nested async includes are evaluated inline since nothing splices them
+	 */
+	private boolean asyncChild = false;
 
 	private Charset charset = Charsets.toCharset( AppConfig.get().getString( "server.defaultEncoding", "UTF-8" ) );
 
@@ -118,6 +224,13 @@ public class ScriptingFactory implements LogSource
 
 	private final StackFactory stackFactory = new StackFactory();
 
+	/**
+	 * Every file evaluated by this factory, including includes, plus the files processors report reading, e.g., Less imports
+	 */
+	private final Set<File> dependencies = new LinkedHashSet<>();
+
+	private final boolean profiling = ScriptProfiler.sample();
+
 	private YieldBuffer yieldBuffer = null;
 
 	private ScriptingFactory( ScriptBinding binding )
@@ -126,6 +239,21 @@ public class ScriptingFactory implements LogSource
 		this.binding = binding;
 	}
 
+	private static synchronized ExecutorService asyncExecutor()
+	{
+		if ( asyncExecutor == null )
+		{
+			AtomicInteger threadCount = new AtomicInteger();
+			asyncExecutor = Executors.newFixedThreadPool( Math.max( 1, AppConfig.get().getInt( "advanced.scripting.asyncIncludeThreads", 8 ) ), runnable ->
+			{
+				Thread thread = new Thread( runnable, "Scripting Async Include #" + threadCount.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			} );
+		}
+		return asyncExecutor;
+	}
+
 	public ScriptBinding binding()
 	{
 		return binding;
@@ -136,6 +264,24 @@ public class ScriptingFactory implements LogSource
 		return charset;
 	}
 
+	/**
+	 * Records a file the evaluated output depends on, for files read by processors rather than evaluated by this factory
+	 *
+	 * @param file The file read
+	 */
+	public void dependsOn( File file )
+	{
+		dependencies.add( file.getAbsoluteFile() );
+	}
+
+	/**
+	 * @return The files evaluated or read so far by this factory, so callers caching the output know when to rebuild it
+	 */
+	public Set<File> dependencies()
+	{
+		return Collections.unmodifiableSet( dependencies );
+	}
+
 	private void compileEngines( ScriptingContext context )
 	{
 		for ( ScriptingRegistry registry : scripting )
@@ -168,6 +314,8 @@ public class ScriptingFactory implements LogSource
 		if ( result.hasNonIgnorableExceptions() )
 			return result;
 
+		ScriptProfiler.Node profile = profiling ? ScriptProfiler.begin( context ) : null;
+
 		try
 		{
 			String name;
@@ -175,6 +323,7 @@ public class ScriptingFactory implements LogSource
 				name = "EvalScript" + UtilEncryption.rand( 8 ) + ".chi";
 			else
 			{
+				dependsOn( context.file() );
 				String rel = UtilIO.relPath( context.file().getParentFile(), context.site().directory() ).replace( '\\', '.' ).replace( '/', '.' );
 				context.cacheDirectory( new File( context.cacheDirectory(), rel.contains( "." ) ? rel.substring( 0, rel.indexOf( "." ) ) : rel ) );
 				context.scriptPackage( rel.contains( "." ) ? rel.substring( rel.indexOf( "." ) + 1 ) : "" );
@@ -184,20 +333,34 @@ public class ScriptingFactory implements LogSource
 			context.scriptName( name );
 			stackFactory.stack( name, context );
 
-			PreEvalEvent preEvent = new PreEvalEvent( context );
 			try
 			{
-				EventBus.instance().callEventWithException( preEvent );
+				for ( ScriptingProcessor processor : processors( false, context ) )
+					processor.process( context );
 			}
 			catch ( Exception e )
 			{
-				if ( result.handleException( e.getCause() == null ? e : e.getCause(), context ) )
+				if ( result.handleException( e, context ) )
 					return result;
 			}
 
-			if ( preEvent.isCancelled() )
-				if ( result.handleException( new ScriptingException( ReportingLevel.E_ERROR, "Evaluation was cancelled by an internal event" ), context ) )
-					return result;
+			if ( hasListeners( PreEvalEvent.class ) )
+			{
+				PreEvalEvent preEvent = new PreEvalEvent( context );
+				try
+				{
+					EventBus.instance().callEventWithException( preEvent );
+				}
+				catch ( Exception e )
+				{
+					if ( result.handleException( e.getCause() == null ? e : e.getCause(), context ) )
+						return result;
+				}
+
+				if ( preEvent.isCancelled() )
+					if ( result.handleException( new ScriptingException( ReportingLevel.E_ERROR, "Evaluation was cancelled by an internal event" ), context ) )
+						return result;
+			}
 
 			if ( engines.size() == 0 )
 				compileEngines( context );
@@ -230,20 +393,37 @@ public class ScriptingFactory implements LogSource
 						}
 					}
 
-			PostEvalEvent postEvent = new PostEvalEvent( context );
 			try
 			{
-				EventBus.instance().callEventWithException( postEvent );
+				for ( ScriptingProcessor processor : processors( true, context ) )
+					processor.process( context );
 			}
-			catch ( EventException e )
+			catch ( Exception e )
 			{
-				if ( result.handleException( e.getCause() == null ? e : e.getCause(), context ) )
+				if ( result.handleException( e, context ) )
 					return result;
 			}
+
+			if ( hasListeners( PostEvalEvent.class ) )
+			{
+				PostEvalEvent postEvent = new PostEvalEvent( context );
+				try
+				{
+					EventBus.instance().callEventWithException( postEvent );
+				}
+				catch ( EventException e )
+				{
+					if ( result.handleException( e.getCause() == null ? e : e.getCause(), context ) )
+						return result;
+				}
+			}
 		}
 		finally
 		{
 			stackFactory.unstack();
+
+			if ( profile != null )
+				ScriptProfiler.end( profile, context );
 		}
 
 		return result.success( true );
@@ -256,19 +436,37 @@ public class ScriptingFactory implements LogSource
 	}
 
 	/**
-	 * Stores the current output buffer for the stacked capture
+	 * Marks where a stacked capture begins within the shared output buffer.
+	 * Each level only owns the bytes written after its mark, so pushing and popping never copies the output that came before it.
+	 */
+	private static class BufferMark
+	{
+		final int readerIndex;
+		final int writerIndex;
+		final StackType type;
+
+		BufferMark( int readerIndex, int writerIndex, StackType type )
+		{
+			this.readerIndex = readerIndex;
+			this.writerIndex = writerIndex;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Marks the current end of the output buffer for the stacked capture, the output prior to the mark is hidden but left in place
 	 */
 	private int bufferPush( StackType type )
 	{
-		bufferStack.add( new Pair<>( output.copy(), type ) );
-		output.clear();
+		bufferStack.add( new BufferMark( output.readerIndex(), output.writerIndex(), type ) );
+		output.readerIndex( output.writerIndex() );
 		return bufferStack.size() - 1;
 	}
 
 	/**
-	 * Returns the output buffer to it's last state
+	 * Validates the stack level, flushing any forgotten output buffers stacked above it
 	 */
-	private void bufferPop( int level )
+	private void bufferCheck( int level )
 	{
 		if ( bufferStack.size() == 0 )
 			throw new IllegalStateException( "Buffer stack is empty." );
@@ -277,15 +475,24 @@ public class ScriptingFactory implements LogSource
 			throw new IllegalStateException( "Buffer stack size was too low." );
 
 		// Check for possible forgotten obEnd()'s. Could loop as each detection will move up one next level.
-		if ( bufferStack.size() > level + 1 && bufferStack.get( level + 1 ).getValue() == StackType.OB )
+		if ( bufferStack.size() > level + 1 && bufferStack.get( level + 1 ).type == StackType.OB )
 			obFlush( level + 1 );
 
 		// Determines if the buffer was not push'd or pop'd in the correct order, often indicating outside manipulation of the bufferStack.
 		if ( bufferStack.size() - 1 > level )
 			throw new IllegalStateException( "Buffer stack size was too high." );
+	}
 
-		output.clear();
-		output.writeBytes( bufferStack.remove( level ).getKey() );
+	/**
+	 * Returns the output buffer to it's last state, discarding anything written since the mark
+	 */
+	private void bufferPop( int level )
+	{
+		bufferCheck( level );
+
+		BufferMark mark = bufferStack.remove( level );
+		output.writerIndex( mark.writerIndex );
+		output.readerIndex( mark.readerIndex );
 	}
 
 	public int obStart()
@@ -295,16 +502,22 @@ public class ScriptingFactory implements LogSource
 
 	public void obFlush( int stackLevel )
 	{
-		// Forward the output buffer content into the last buffer
-		String content = obEnd( stackLevel );
-		print( content );
+		if ( bufferStack.get( stackLevel ).type != StackType.OB )
+			throw new IllegalStateException( "The stack level was not an Output Buffer." );
+
+		bufferCheck( stackLevel );
+
+		// The content already follows the last buffer, so forwarding it only requires dropping the mark
+		output.readerIndex( bufferStack.remove( stackLevel ).readerIndex );
 	}
 
 	public String obEnd( int stackLevel )
 	{
-		if ( bufferStack.get( stackLevel ).getValue() != StackType.OB )
+		if ( bufferStack.get( stackLevel ).type != StackType.OB )
 			throw new IllegalStateException( "The stack level was not an Output Buffer." );
 
+		bufferCheck( stackLevel );
+
 		String content = output.toString( charset );
 
 		bufferPop( stackLevel );
@@ -312,6 +525,119 @@ public class ScriptingFactory implements LogSource
 		return content;
 	}
 
+	/**
+	 * Evaluates the provided context on the shared async include executor using a clone of this factory binding.
+	 * The returned placeholder is spliced with the evaluated output by {@link #spliceAsync(ByteBuf)}, which keeps the includes in page order.
+	 * Once the per-request limit of pending includes is reached, the context is evaluated on the calling thread instead.
+	 * Keep in mind that async includes run outside the request thread, so they should be self-contained, e.g., headers, sidebars, and widgets.
+	 * The include gets its own factory, exposed to scripts as the {@code __FACTORY__} binding, so it never touches the output buffers of the request factory.
+	 * The request is lent to the worker thread, with its factory resolving to the include's own, see {@link HttpRequestWrapper#lend(HttpRequestWrapper, ScriptingFactory)}.
+	 *
+	 * @param context The context to evaluate
+	 * @return The placeholder to output in place of the include
+	 */
+	public String includeAsync( ScriptingContext context ) throws ScriptingException, MultipleException
+	{
+		int limit = AppConfig.get().getInt( "advanced.scripting.asyncIncludeLimit", 4 );
+
+		if ( asyncChild || limit < 1 || asyncIncludes.values().stream().filter( future -> !future.isDone() ).count() >= limit )
+			return context.factory( this ).read();
+
+		final ScriptingFactory factory = new ScriptingFactory( new ScriptBinding( Maps.newLinkedHashMap( binding.getVariables() ) ) );
+		factory.setEncoding( charset );
+		factory.asyncChild = true;
+		factory.binding.setVariable( "__FACTORY__", factory );
+		context.factory( factory );
+
+		final HttpRequestWrapper request = context.request();
+
+		String placeholder = String.format( "<!-- async(%s:%s) -->", asyncToken, asyncIncludes.size() );
+		asyncIncludes.put( placeholder, asyncExecutor().submit( () ->
+		{
+			if ( request != null )
+				HttpRequestWrapper.lend( request, factory );
+
+			try
+			{
+				ScriptingResult result = factory.eval( context );
+
+				if ( result.hasNonIgnorableExceptions() )
+					ExceptionReport.throwExceptions( result.getExceptions() );
+
+				String str = result.getString();
+				if ( result.hasIgnorableExceptions() )
+					str = ExceptionReport.printExceptions( result.getIgnorableExceptions() ) + "\n" + str;
+				return str;
+			}
+			finally
+			{
+				if ( request != null )
+					HttpRequestWrapper.unlend();
+			}
+		} ) );
+
+		return placeholder;
+	}
+
+	/**
+	 * Replaces the placeholders returned by {@link #includeAsync(ScriptingContext)} with the evaluated output, waiting for any still pending.
+	 * All includes share a single deadline of advanced.security.defaultScriptTimeout seconds.
+	 * Output whose placeholder was removed from the page, e.g., by an output buffer, is appended to the end instead.
+	 *
+	 * @param rendered The rendered output containing placeholders
+	 * @return The rendered output with async includes spliced in
+	 */
+	public ByteBuf spliceAsync( ByteBuf rendered ) throws ScriptingException
+	{
+		if ( asyncIncludes.size() == 0 )
+			return rendered;
+
+		StringBuilder source = new StringBuilder( rendered.toString( charset ) );
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( AppConfig.get().getInt( "advanced.security.defaultScriptTimeout", 30 ) );
+
+		try
+		{
+			for ( Entry<String, Future<String>> entry : asyncIncludes.entrySet() )
+			{
+				String content = entry.getValue().get( Math.max( 0, deadline - System.nanoTime() ), TimeUnit.NANOSECONDS );
+				int inx = source.indexOf( entry.getKey() );
+				if ( inx > -1 )
+					source.replace( inx, inx + entry.getKey().length(), content );
+				else
+				{
+					Log.get( this ).warning( "The placeholder of an async include was not found in the output, it was appended to the end instead." );
+					source.append( content );
+				}
+			}
+		}
+		catch ( ExecutionException e )
+		{
+			if ( e.getCause() instanceof ScriptingException )
+				throw ( ScriptingException ) e.getCause();
+			throw new ScriptingException( ReportingLevel.E_ERROR, "Async include failed to evaluate", e.getCause() );
+		}
+		catch ( InterruptedException | TimeoutException e )
+		{
+			throw new ScriptingException( ReportingLevel.E_ERROR, "Async include did not finish within the script timeout", e );
+		}
+		finally
+		{
+			cancelAsync();
+		}
+
+		return Unpooled.copiedBuffer( source, charset );
+	}
+
+	/**
+	 * Cancels the async includes not yet spliced, called once the request is torn down, e.g., the response was committed early or failed
+	 */
+	public void cancelAsync()
+	{
+		for ( Future<String> future : asyncIncludes.values() )
+			future.cancel( true );
+		asyncIncludes.clear();
+	}
+
 	public Charset getCharset()
 	{
 		return charset;
@@ -0,0 +1,30 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.factory;
+
+/**
+ * Processes a {@link ScriptingContext} before or after it is evaluated by the {@link ScriptingFactory}.
+ * The content types and shells are read once at registration and used to build the factory dispatch table,
+ * so a processor is only invoked for contexts it declared.
+ */
+public interface ScriptingProcessor
+{
+	/**
+	 * @return The handled content types, a type ending with a slash matches every subtype, e.g. {@code image/}
+	 */
+	String[] contentTypes();
+
+	/**
+	 * @return The handled shells, a processor that declares no content types or shells handles every context
+	 */
+	String[] shells();
+
+	void process( ScriptingContext context ) throws Exception;
+}
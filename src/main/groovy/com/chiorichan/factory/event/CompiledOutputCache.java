@@ -0,0 +1,178 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.factory.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.chiorichan.logger.Log;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+
+/**
+ * Caches the output of the pre and post processors in memory and, when provided a directory, on disk so it survives restarts.
+ * Keys are expected to be fingerprints of everything that went into the output, so a stale entry is simply never requested again.
+ * Both the memory and disk copies are bounded to the maximum size, disk files are deleted as they are evicted and any files left
+ * over from a previous run are pruned to the same bound the first time a directory is used.
+ */
+public class CompiledOutputCache
+{
+	private final Cache<String, String> memory;
+	private final String extension;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * The disk copies read or written, mapped to their key, since one key may be written to the temp directory of several sites
+	 */
+	private final Cache<File, String> files;
+
+	private final Set<File> directories = ConcurrentHashMap.newKeySet();
+	private final int maximumSize;
+
+	public CompiledOutputCache( String extension, int maximumSize )
+	{
+		this.extension = extension;
+		this.maximumSize = maximumSize;
+		memory = CacheBuilder.newBuilder().maximumSize( maximumSize ).build();
+		files = CacheBuilder.newBuilder().maximumSize( maximumSize ).<File, String> removalListener( notification ->
+		{
+			if ( notification.getCause() != RemovalCause.REPLACED && notification.getKey() != null )
+				notification.getKey().delete();
+		} ).build();
+	}
+
+	/**
+	 * Registers the files already in the directory the first time it is used, deleting the oldest beyond the maximum size
+	 *
+	 * @param directory The disk cache directory
+	 */
+	private void prune( File directory )
+	{
+		if ( !directories.add( directory ) )
+			return;
+
+		File[] existing = directory.listFiles( ( dir, name ) -> name.endsWith( "." + extension ) );
+		if ( existing == null )
+			return;
+
+		Arrays.sort( existing, Comparator.comparingLong( File::lastModified ) );
+		for ( int i = 0; i < existing.length; i++ )
+			if ( i < existing.length - maximumSize )
+				existing[i].delete();
+			else
+			{
+				String name = existing[i].getName();
+				files.put( existing[i], name.substring( 0, name.length() - extension.length() - 1 ) );
+			}
+	}
+
+	private File file( File directory, String key )
+	{
+		return new File( directory, key + "." + extension );
+	}
+
+	/**
+	 * Looks up the output in memory and then the directory
+	 *
+	 * @param key       The output fingerprint
+	 * @param directory The disk cache directory, null for memory only
+	 * @return The cached output or null if it was not cached
+	 */
+	public String get( String key, File directory )
+	{
+		String content = memory.getIfPresent( key );
+
+		if ( content == null && directory != null )
+		{
+			prune( directory );
+			File file = file( directory, key );
+			if ( file.exists() )
+				try
+				{
+					content = new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 );
+					memory.put( key, content );
+					files.put( file, key );
+				}
+				catch ( IOException e )
+				{
+					Log.get( "ScriptFactory" ).warning( "Failed to read cached output '" + file.getName() + "': " + e.getMessage() );
+				}
+		}
+
+		( content == null ? misses : hits ).incrementAndGet();
+		return content;
+	}
+
+	/**
+	 * Stores the output in memory and the directory, the file is written to a temporary file first and moved into place.
+	 *
+	 * @param key       The output fingerprint
+	 * @param content   The output
+	 * @param directory The disk cache directory, null for memory only
+	 */
+	public void put( String key, String content, File directory )
+	{
+		memory.put( key, content );
+
+		if ( directory != null )
+			try
+			{
+				if ( !directory.exists() )
+					directory.mkdirs();
+				prune( directory );
+
+				File tmp = File.createTempFile( key, ".tmp", directory );
+				Files.write( tmp.toPath(), content.getBytes( StandardCharsets.UTF_8 ) );
+				File file = file( directory, key );
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+				files.put( file, key );
+			}
+			catch ( IOException e )
+			{
+				Log.get( "ScriptFactory" ).warning( "Failed to write cached output for '" + key + "': " + e.getMessage() );
+			}
+	}
+
+	/**
+	 * Removes the output from memory and deletes the disk copies, if any were read or written
+	 *
+	 * @param key The output fingerprint
+	 */
+	public void invalidate( String key )
+	{
+		memory.invalidate( key );
+		files.asMap().values().removeIf( key::equals );
+	}
+
+	public long hits()
+	{
+		return hits.get();
+	}
+
+	public long misses()
+	{
+		return misses.get();
+	}
+
+	public long size()
+	{
+		return memory.size();
+	}
+}
@@ -10,72 +10,123 @@
 package com.chiorichan.factory.event;
 
 import com.chiorichan.AppConfig;
-import com.chiorichan.event.EventHandler;
-import com.chiorichan.event.Listener;
 import com.chiorichan.factory.ScriptingContext;
+import com.chiorichan.factory.ScriptingProcessor;
 import com.chiorichan.http.HttpRequestWrapper;
 import com.chiorichan.lang.EnumColor;
 import com.chiorichan.logger.Log;
 import com.chiorichan.utils.UtilEncryption;
 import com.chiorichan.utils.UtilObjects;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
-import org.apache.commons.io.FileUtils;
+import io.netty.handler.codec.http.HttpResponseStatus;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.Toolkit;
+import java.awt.RenderingHints;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
-import java.awt.image.FilteredImageSource;
-import java.awt.image.RGBImageFilter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
- * Applies special builtin image filters post {@link com.chiorichan.factory.ScriptingFactory} via {@link PostEvalEvent}
+ * Applies special builtin image filters post {@link com.chiorichan.factory.ScriptingFactory} as a {@link ScriptingProcessor}
+ * <p>
+ * Variants are cached in the site temp directory, keyed by the source fingerprint and the requested filters,
+ * so a cached variant never pays for decoding the source image.
+ * <p>
+ * Transforms run on a bounded worker pool and must first reserve their estimated memory (width x height x 4 bytes
+ * for both the source and output) from a shared budget. When the pool or budget is exhausted the request is answered
+ * with 503 Service Unavailable and a Retry-After header instead of queuing indefinitely. Sources larger than
+ * advanced.processors.imageMaxPixels, or whose estimate alone exceeds the budget, are refused with 413 Request Entity Too Large.
  *
  * @author Chiori Greene, a.k.a. Chiori-chan {@literal <me@chiorichan.com>}
  */
-public class PostImageProcessor implements Listener
+public class PostImageProcessor implements ScriptingProcessor
 {
-	static class RGBColorFilter extends RGBImageFilter
-	{
-		private final int filter;
+	private static final Set<String> readerFormats = Arrays.stream( ImageIO.getReaderFormatNames() ).map( String::toLowerCase ).collect( Collectors.toSet() );
+	private static final Set<String> writerFormats = Arrays.stream( ImageIO.getWriterFormatNames() ).map( String::toLowerCase ).collect( Collectors.toSet() );
 
-		RGBColorFilter( int filter )
-		{
-			this.filter = filter;
-			canFilterIndexColorModel = true;
-		}
+	/**
+	 * Variants currently being encoded, concurrent identical requests wait on the first instead of encoding again
+	 */
+	private static final Map<String, CompletableFuture<byte[]>> inflight = new ConcurrentHashMap<>();
 
-		@Override
-		public int filterRGB( int x, int y, int rgb )
-		{
-			return rgb & filter;
-		}
+	private static final int maxDimension = AppConfig.get().getInt( "advanced.processors.imageMaxDimension", 4096 );
+
+	/**
+	 * The largest source image accepted, in width x height pixels
+	 */
+	private static final long maxPixels = AppConfig.get().getLong( "advanced.processors.imageMaxPixels", 40000000L );
+
+	/**
+	 * The memory budget shared by all image transforms, each permit is one kilobyte
+	 */
+	private static final int budget = Math.max( 1, AppConfig.get().getInt( "advanced.processors.imageMemoryBudget", 256 ) ) * 1024;
+	private static final Semaphore pixelBudget = new Semaphore( budget, true );
+
+	private static final ThreadPoolExecutor executor;
+
+	static
+	{
+		int threads = Math.max( 1, AppConfig.get().getInt( "advanced.processors.imageThreads", Runtime.getRuntime().availableProcessors() ) );
+		AtomicInteger threadCount = new AtomicInteger();
+
+		executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>( Math.max( 1, AppConfig.get().getInt( "advanced.processors.imageQueueSize", 32 ) ) ), r -> {
+			Thread thread = new Thread( r, "Image Processor Worker #" + threadCount.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		executor.allowCoreThreadTimeOut( true );
 	}
 
-	@EventHandler()
-	public void onEvent( PostEvalEvent event )
+	/**
+	 * Thrown when the source image could never fit within the limits, no matter how long the request waits
+	 */
+	static class ImageTooLargeException extends Exception
 	{
-		try
+		ImageTooLargeException( String message )
 		{
-			if ( event.context().contentType() == null || !event.context().contentType().toLowerCase().startsWith( "image" ) )
-				return;
-
-			float x = -1;
-			float y = -1;
-
-			boolean cacheEnabled = AppConfig.get().getBoolean( "advanced.processors.imageProcessorCache", true );
-			boolean grayscale = false;
+			super( message );
+		}
+	}
 
-			ScriptingContext context = event.context();
-			HttpRequestWrapper request = context.request();
+	/**
+	 * The filters requested for an image
+	 */
+	static class ImageVariant
+	{
+		float x = -1;
+		float y = -1;
+		String argb = null;
+		boolean grayscale = false;
 
+		ImageVariant( HttpRequestWrapper request )
+		{
 			if ( !UtilObjects.isNull( request.getArgument( "width" ) ) )
 				x = request.getArgumentInt( "width" );
 
@@ -103,106 +154,380 @@ public class PostImageProcessor implements Listener
 			if ( request.hasArgument( "bw" ) || request.hasArgument( "grayscale" ) )
 				grayscale = true;
 
-			// Tests if our Post Processor can process the current image.
-			List<String> readerFormats = Arrays.asList( ImageIO.getReaderFormatNames() );
-			List<String> writerFormats = Arrays.asList( ImageIO.getWriterFormatNames() );
-			if ( context.contentType() != null && !readerFormats.contains( context.contentType().split( "/" )[1].toLowerCase() ) )
-				return;
+			// TODO Report malformed parameters to user
+			if ( request.hasArgument( "argb" ) && request.getArgument( "argb" ).length() == 8 )
+				argb = request.getArgument( "argb" );
 
-			int inx = event.context().buffer().readerIndex();
-			BufferedImage img = ImageIO.read( new ByteBufInputStream( event.context().buffer() ) );
-			event.context().buffer().readerIndex( inx );
+			x = Math.min( x, maxDimension );
+			y = Math.min( y, maxDimension );
+		}
 
-			if ( img == null )
-				return;
+		boolean isEmpty()
+		{
+			return x < 1 && y < 1 && argb == null && !grayscale;
+		}
 
-			float w = img.getWidth();
-			float h = img.getHeight();
-			float w1 = w;
-			float h1 = h;
+		/**
+		 * Checks the requested size against the site presets, an empty preset list allows any size
+		 */
+		boolean isAllowed( List<String> presets )
+		{
+			return presets.isEmpty() || x < 1 && y < 1 || presets.contains( Math.round( Math.max( x, 0 ) ) + "x" + Math.round( Math.max( y, 0 ) ) );
+		}
 
-			if ( x < 1 && y < 1 )
-			{
-				x = w;
-				y = h;
-			}
-			else if ( x > 0 && y < 1 )
-			{
-				w1 = x;
-				h1 = x * ( h / w );
-			}
-			else if ( y > 0 && x < 1 )
+		@Override
+		public String toString()
+		{
+			return x + "x" + y + ":" + argb + ":" + grayscale;
+		}
+	}
+
+	/**
+	 * Scales the image using bilinear interpolation, halving the size each step when downscaling by more than half so detail is not dropped
+	 */
+	static BufferedImage scale( BufferedImage img, int width, int height, boolean fast )
+	{
+		int type = img.getType() == BufferedImage.TYPE_CUSTOM ? img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB : img.getType();
+		BufferedImage current = img;
+		int w = img.getWidth();
+		int h = img.getHeight();
+
+		do
+		{
+			if ( !fast && w / 2 >= width )
+				w /= 2;
+			else
+				w = width;
+
+			if ( !fast && h / 2 >= height )
+				h /= 2;
+			else
+				h = height;
+
+			BufferedImage step = new BufferedImage( w, h, type );
+			Graphics2D graphics = step.createGraphics();
+			graphics.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+			graphics.drawImage( current, 0, 0, w, h, null );
+			graphics.dispose();
+			current = step;
+		}
+		while ( w != width || h != height );
+
+		return current;
+	}
+
+	/**
+	 * Decodes the source image, applies the variant filters and encodes the result
+	 *
+	 * @return The encoded variant or null if the image needs no processing
+	 */
+	static byte[] process( ByteBuf source, ImageVariant variant, String format ) throws IOException
+	{
+		BufferedImage img = ImageIO.read( new ByteBufInputStream( source.duplicate() ) );
+
+		if ( img == null )
+			return null;
+
+		float x = variant.x;
+		float y = variant.y;
+		float w = img.getWidth();
+		float h = img.getHeight();
+		float w1 = w;
+		float h1 = h;
+
+		if ( x > 0 && y < 1 )
+		{
+			w1 = x;
+			h1 = x * ( h / w );
+		}
+		else if ( y > 0 && x < 1 )
+		{
+			w1 = y * ( w / h );
+			h1 = y;
+		}
+		else if ( x > 0 && y > 0 )
+		{
+			w1 = x;
+			h1 = y;
+		}
+
+		boolean resize = w1 > 0 && h1 > 0 && w1 != w && h1 != h;
+
+		if ( !resize && variant.argb == null && !variant.grayscale )
+			return null;
+
+		BufferedImage rtn = resize ? scale( img, Math.max( 1, Math.round( w1 ) ), Math.max( 1, Math.round( h1 ) ), AppConfig.get().getBoolean( "advanced.processors.useFastGraphics", false ) ) : img;
+
+		if ( variant.argb != null )
+		{
+			int filter = ( int ) Long.parseLong( variant.argb, 16 );
+			int[] pixels = rtn.getRGB( 0, 0, rtn.getWidth(), rtn.getHeight(), null, 0, rtn.getWidth() );
+			for ( int i = 0; i < pixels.length; i++ )
+				pixels[i] &= filter;
+			rtn.setRGB( 0, 0, rtn.getWidth(), rtn.getHeight(), pixels, 0, rtn.getWidth() );
+		}
+
+		if ( variant.grayscale )
+		{
+			ColorConvertOp op = new ColorConvertOp( ColorSpace.getInstance( ColorSpace.CS_GRAY ), null );
+			op.filter( rtn, rtn );
+		}
+
+		if ( resize )
+			Log.get().info( EnumColor.GRAY + "Resized image from " + Math.round( w ) + "px by " + Math.round( h ) + "px to " + Math.round( w1 ) + "px by " + Math.round( h1 ) + "px" );
+
+		ByteArrayOutputStream bs = new ByteArrayOutputStream();
+		ImageIO.write( rtn, writerFormats.contains( format ) ? format : "png", bs );
+		return bs.toByteArray();
+	}
+
+	/**
+	 * Estimates the memory needed to transform the image from its header, without decoding it
+	 *
+	 * @return The estimate in kilobytes, or -1 if the header could not be read
+	 * @throws ImageTooLargeException if the source exceeds the pixel cap or the estimate exceeds the whole budget
+	 */
+	private static int estimate( ByteBuf source, ImageVariant variant ) throws IOException, ImageTooLargeException
+	{
+		try ( ImageInputStream stream = ImageIO.createImageInputStream( new ByteBufInputStream( source.duplicate() ) ) )
+		{
+			Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders( stream );
+			if ( readers == null || !readers.hasNext() )
+				return -1;
+
+			ImageReader reader = readers.next();
+			try
 			{
-				w1 = y * ( w / h );
-				h1 = y;
+				reader.setInput( stream, true, true );
+				long w = reader.getWidth( 0 );
+				long h = reader.getHeight( 0 );
+				if ( w * h > maxPixels )
+					throw new ImageTooLargeException( "Source image is " + w + "px by " + h + "px, exceeding the limit of " + maxPixels + " pixels" );
+
+				long w1 = variant.x > 0 ? ( long ) variant.x : variant.y > 0 ? ( long ) ( variant.y * w / h ) : w;
+				long h1 = variant.y > 0 ? ( long ) variant.y : variant.x > 0 ? ( long ) ( variant.x * h / w ) : h;
+				long permits = ( w * h + w1 * h1 ) * 4 / 1024 + 1;
+				if ( permits > budget )
+					throw new ImageTooLargeException( "Image transform needs " + permits + "KB, exceeding the memory budget of " + budget + "KB" );
+				return ( int ) permits;
 			}
-			else if ( x > 0 && y > 0 )
+			finally
 			{
-				w1 = x;
-				h1 = y;
+				reader.dispose();
 			}
+		}
+	}
+
+	/**
+	 * Transforms the image on the worker pool once its memory estimate fits within the budget.
+	 * The permits are held until the transform actually ends, a timed out decode keeps running and so keeps its memory.
+	 *
+	 * @throws RejectedExecutionException if the pool or memory budget is saturated
+	 */
+	private static byte[] submit( ByteBuf source, ImageVariant variant, String format ) throws Exception
+	{
+		int permits = estimate( source, variant );
+		if ( permits < 0 )
+			return null;
+
+		if ( !pixelBudget.tryAcquire( permits, AppConfig.get().getInt( "advanced.processors.imageAdmissionTimeout", 2000 ), TimeUnit.MILLISECONDS ) )
+			throw new RejectedExecutionException( "Image processing memory budget exhausted" );
+
+		// Whoever claims this first releases the permits, the task once it ends or the caller if the task never ran
+		AtomicBoolean claimed = new AtomicBoolean();
+		Future<byte[]> task;
+		try
+		{
+			task = executor.submit( () -> {
+				if ( !claimed.compareAndSet( false, true ) )
+					return null;
+				try
+				{
+					return process( source, variant, format );
+				}
+				finally
+				{
+					pixelBudget.release( permits );
+				}
+			} );
+		}
+		catch ( RejectedExecutionException e )
+		{
+			pixelBudget.release( permits );
+			throw e;
+		}
+
+		try
+		{
+			return task.get( AppConfig.get().getInt( "advanced.security.defaultScriptTimeout", 30 ), TimeUnit.SECONDS );
+		}
+		catch ( ExecutionException e )
+		{
+			throw e.getCause() instanceof Exception ? ( Exception ) e.getCause() : e;
+		}
+		catch ( TimeoutException e )
+		{
+			task.cancel( true );
+			if ( claimed.compareAndSet( false, true ) )
+				pixelBudget.release( permits );
+			throw e;
+		}
+	}
+
+	/**
+	 * Identifies the source image without decoding it, by file modification for real files and by content for virtual ones
+	 */
+	private static String fingerprint( ScriptingContext context )
+	{
+		if ( !context.isVirtual() )
+		{
+			File file = context.file();
+			return file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length();
+		}
+		return context.bufferHash();
+	}
+
+	/**
+	 * Reads the cached variant into the context, the output buffer copies it regardless so the file is read directly
+	 */
+	private static void writeCached( ScriptingContext context, File file ) throws IOException
+	{
+		context.resetAndWrite( Files.readAllBytes( file.toPath() ) );
+	}
+
+	private static void writeVariant( File file, byte[] bytes ) throws IOException
+	{
+		File dir = file.getParentFile();
+		if ( !dir.exists() )
+			dir.mkdirs();
+
+		File tmp = File.createTempFile( file.getName(), ".tmp", dir );
+		Files.write( tmp.toPath(), bytes );
+		Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	@Override
+	public String[] contentTypes()
+	{
+		return new String[] { "image/" };
+	}
+
+	@Override
+	public String[] shells()
+	{
+		return new String[] {};
+	}
+
+	@Override
+	public void process( ScriptingContext context )
+	{
+		try
+		{
+			if ( context.request() == null )
+				return;
+
+			// Tests if our Post Processor can process the current image.
+			String[] contentType = context.contentType().split( "/" );
+			String format = contentType.length > 1 ? contentType[1].toLowerCase() : "";
+			if ( !readerFormats.contains( format ) )
+				return;
 
-			boolean resize = w1 > 0 && h1 > 0 && w1 != w && h1 != h;
-			boolean argb = request.hasArgument( "argb" ) && request.getArgument( "argb" ).length() == 8;
+			ImageVariant variant = new ImageVariant( context.request() );
+			if ( variant.isEmpty() )
+				return;
 
-			if ( !resize && !argb && !grayscale )
+			// Only sizes whitelisted by the site are produced, keeping the variant cache bounded
+			if ( context.site() != null && !variant.isAllowed( context.site().getConfig().getStringList( "images.presets" ) ) )
 				return;
 
-			// Produce a unique encapsulated id based on this image processing request
-			String encapId = UtilEncryption.md5( context.filename() + w1 + h1 + request.getArgument( "argb" ) + grayscale );
+			boolean cacheEnabled = AppConfig.get().getBoolean( "advanced.processors.imageProcessorCache", true );
+
+			// Produce a unique encapsulated id based on the source image and this image processing request
+			String encapId = UtilEncryption.md5( fingerprint( context ) + variant );
 			File tmp = context.site() == null ? AppConfig.get().getDirectoryCache() : context.site().directoryTemp();
 			File file = new File( tmp, encapId + "_" + new File( context.filename() ).getName() );
 
 			if ( cacheEnabled && file.exists() )
 			{
-				event.context().resetAndWrite( FileUtils.readFileToByteArray( file ) );
+				writeCached( context, file );
 				return;
 			}
 
-			Image image = resize ? img.getScaledInstance( Math.round( w1 ), Math.round( h1 ), AppConfig.get().getBoolean( "advanced.processors.useFastGraphics", true ) ? Image.SCALE_FAST : Image.SCALE_SMOOTH ) : img;
-
-			// TODO Report malformed parameters to user
+			CompletableFuture<byte[]> future = new CompletableFuture<>();
+			CompletableFuture<byte[]> existing = inflight.putIfAbsent( encapId, future );
+			byte[] result;
 
-			if ( argb )
+			try
 			{
-				FilteredImageSource filteredSrc = new FilteredImageSource( image.getSource(), new RGBColorFilter( ( int ) Long.parseLong( request.getArgument( "argb" ), 16 ) ) );
-				image = Toolkit.getDefaultToolkit().createImage( filteredSrc );
+				// Waiters are held no longer than a new request would wait for admission, then told to retry
+				if ( existing != null )
+					result = existing.get( AppConfig.get().getInt( "advanced.processors.imageAdmissionTimeout", 2000 ), TimeUnit.MILLISECONDS );
+				else
+					try
+					{
+						result = submit( context.buffer(), variant, format );
+
+						if ( result != null && cacheEnabled )
+							writeVariant( file, result );
+
+						future.complete( result );
+					}
+					catch ( Throwable t )
+					{
+						future.completeExceptionally( t );
+						throw t;
+					}
+					finally
+					{
+						inflight.remove( encapId );
+					}
 			}
-
-			BufferedImage rtn = new BufferedImage( Math.round( w1 ), Math.round( h1 ), img.getType() );
-			Graphics2D graphics = rtn.createGraphics();
-			graphics.drawImage( image, 0, 0, null );
-			graphics.dispose();
-
-			if ( grayscale )
+			catch ( RejectedExecutionException | TimeoutException e )
 			{
-				ColorConvertOp op = new ColorConvertOp( ColorSpace.getInstance( ColorSpace.CS_GRAY ), null );
-				op.filter( rtn, rtn );
+				unavailable( context );
+				return;
 			}
-
-			if ( resize )
-				Log.get().info( EnumColor.GRAY + "Resized image from " + Math.round( w ) + "px by " + Math.round( h ) + "px to " + Math.round( w1 ) + "px by " + Math.round( h1 ) + "px" );
-
-			if ( rtn != null )
+			catch ( ImageTooLargeException e )
 			{
-				ByteArrayOutputStream bs = new ByteArrayOutputStream();
-
-				if ( context.contentType() != null && writerFormats.contains( context.contentType().split( "/" )[1].toLowerCase() ) )
-					ImageIO.write( rtn, context.contentType().split( "/" )[1].toLowerCase(), bs );
-				else
-					ImageIO.write( rtn, "png", bs );
-
-				if ( cacheEnabled && !file.exists() )
-					FileUtils.writeByteArrayToFile( file, bs.toByteArray() );
-
-				event.context().resetAndWrite( bs.toByteArray() );
+				tooLarge( context, e );
+				return;
+			}
+			catch ( ExecutionException e )
+			{
+				if ( e.getCause() instanceof RejectedExecutionException || e.getCause() instanceof TimeoutException )
+				{
+					unavailable( context );
+					return;
+				}
+				if ( e.getCause() instanceof ImageTooLargeException )
+				{
+					tooLarge( context, ( ImageTooLargeException ) e.getCause() );
+					return;
+				}
+				throw e;
 			}
+
+			if ( result != null )
+				context.resetAndWrite( result );
+		}
+		catch ( ExecutionException e )
+		{
+			e.getCause().printStackTrace();
 		}
 		catch ( Throwable e )
 		{
 			e.printStackTrace();
 		}
+	}
 
-		return;
+	private static void unavailable( ScriptingContext context ) throws IOException
+	{
+		context.request().getResponse().setHeader( "Retry-After", AppConfig.get().getInt( "advanced.processors.imageRetryAfter", 5 ) );
+		context.request().getResponse().sendError( HttpResponseStatus.SERVICE_UNAVAILABLE, "The image processor is busy, please try again shortly." );
+	}
+
+	private static void tooLarge( ScriptingContext context, ImageTooLargeException e ) throws IOException
+	{
+		context.request().getResponse().sendError( HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "The image is too large to be processed.", e.getMessage() );
 	}
 }
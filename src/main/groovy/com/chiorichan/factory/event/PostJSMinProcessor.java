@@ -9,33 +9,97 @@
  */
 package com.chiorichan.factory.event;
 
-import com.chiorichan.event.EventHandler;
-import com.chiorichan.event.Listener;
+import com.chiorichan.AppConfig;
+import com.chiorichan.factory.ScriptingContext;
+import com.chiorichan.factory.ScriptingProcessor;
+import com.chiorichan.logger.Log;
+import com.chiorichan.utils.UtilEncryption;
 import com.google.javascript.jscomp.CompilationLevel;
 import com.google.javascript.jscomp.Compiler;
 import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.Result;
 import com.google.javascript.jscomp.SourceFile;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class PostJSMinProcessor implements Listener
+/**
+ * Minifies JavaScript output with the Closure Compiler in the background.
+ * The first request for a given output is served unminified while a bounded worker pool minifies it,
+ * later requests are served from a memory cache keyed by the md5 of the evaluated output.
+ */
+public class PostJSMinProcessor implements ScriptingProcessor
 {
-	@EventHandler()
-	public void onEvent( PostEvalEvent event )
+	private static final CompiledOutputCache cache = new CompiledOutputCache( "js", AppConfig.get().getInt( "advanced.processors.minifierCacheSize", 512 ) );
+	private static final Set<String> pending = ConcurrentHashMap.newKeySet();
+	/**
+	 * Outputs the compiler rejected, they're served unminified without being compiled again
+	 */
+	private static final Set<String> failed = ConcurrentHashMap.newKeySet();
+	private static final ThreadPoolExecutor executor;
+
+	static
 	{
-		if ( !event.context().contentType().equals( "application/javascript-x" ) || !event.context().filename().endsWith( "js" ) )
-			return;
+		int threads = Math.max( 1, AppConfig.get().getInt( "advanced.processors.minifierThreads", 2 ) );
+		AtomicInteger threadCount = new AtomicInteger();
 
-		// A simple way to ignore JS files that might already be minimized
-		if ( event.context().filename() != null && event.context().filename().toLowerCase().endsWith( ".min.js" ) )
-			return;
+		executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>( Math.max( 1, AppConfig.get().getInt( "advanced.processors.minifierQueueSize", 64 ) ) ), r -> {
+			Thread thread = new Thread( r, "JS Minifier Worker #" + threadCount.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		executor.allowCoreThreadTimeOut( true );
+	}
+
+	public static long hits()
+	{
+		return cache.hits();
+	}
+
+	public static long misses()
+	{
+		return cache.misses();
+	}
+
+	public static int pending()
+	{
+		return pending.size();
+	}
+
+	public static long size()
+	{
+		return cache.size();
+	}
+
+	/**
+	 * Minifies the code on the calling thread
+	 *
+	 * @param filename The source name used in compiler messages
+	 * @param code     The JavaScript source
+	 * @return The minified source or the original code if the compiler reported errors
+	 */
+	public static String minify( String filename, String code )
+	{
+		String result = compile( filename, code );
+		return result == null ? code : result;
+	}
 
-		String code = event.context().readString();
+	/**
+	 * @return The minified source or null if the compiler reported errors
+	 */
+	private static String compile( String filename, String code )
+	{
 		List<SourceFile> externals = new ArrayList<>();
-		List<SourceFile> inputs = Arrays.asList( SourceFile.fromCode( ( event.context().filename() == null || event.context().filename().isEmpty() ) ? "fakefile.js" : event.context().filename(), code ) );
+		List<SourceFile> inputs = Arrays.asList( SourceFile.fromCode( filename, code ) );
 
 		Compiler compiler = new Compiler();
 
@@ -43,9 +107,85 @@ public class PostJSMinProcessor implements Listener
 
 		CompilationLevel.SIMPLE_OPTIMIZATIONS.setOptionsForCompilationLevel( options );
 
-		compiler.compile( externals, inputs, options );
+		Result result = compiler.compile( externals, inputs, options );
+
+		if ( !result.success || result.errors.length > 0 )
+		{
+			Log.get().warning( "Failed to minify JavaScript file '" + filename + "': " + Arrays.toString( result.errors ) );
+			return null;
+		}
 
-		event.context().resetAndWrite( StringUtils.trimToNull( compiler.toSource() ) );
+		// Nothing left of non-blank code is treated as a failure, such code is served as is
+		String source = StringUtils.trimToNull( compiler.toSource() );
+		return source == null && !StringUtils.isBlank( code ) ? null : StringUtils.defaultString( source );
+	}
+
+	@Override
+	public String[] contentTypes()
+	{
+		return new String[] { "application/x-javascript", "application/javascript", "text/javascript" };
 	}
 
+	@Override
+	public String[] shells()
+	{
+		return new String[] { "js" };
+	}
+
+	@Override
+	public void process( ScriptingContext context )
+	{
+		String filename = context.filename();
+
+		// A simple way to ignore JS files that might already be minimized
+		if ( filename != null && filename.toLowerCase().endsWith( ".min.js" ) )
+			return;
+
+		String code = context.readString();
+		String key = UtilEncryption.md5( code );
+		String minified = cache.get( key, null );
+
+		if ( minified != null )
+		{
+			context.resetAndWrite( minified );
+			return;
+		}
+
+		// Serve the unminified output until a worker has finished with it
+		if ( failed.contains( key ) || !pending.add( key ) )
+			return;
+
+		String sourceName = filename == null || filename.isEmpty() ? "fakefile.js" : filename;
+
+		try
+		{
+			executor.execute( () -> {
+				try
+				{
+					String result = compile( sourceName, code );
+					if ( result != null )
+						cache.put( key, result, null );
+					else
+					{
+						if ( failed.size() >= AppConfig.get().getInt( "advanced.processors.minifierCacheSize", 512 ) )
+							failed.clear();
+						failed.add( key );
+					}
+				}
+				catch ( Throwable t )
+				{
+					Log.get().warning( "Failed to minify JavaScript file '" + sourceName + "': " + t.getMessage() );
+				}
+				finally
+				{
+					pending.remove( key );
+				}
+			} );
+		}
+		catch ( RejectedExecutionException e )
+		{
+			// Workers are saturated, the next request will try again
+			pending.remove( key );
+		}
+	}
 }
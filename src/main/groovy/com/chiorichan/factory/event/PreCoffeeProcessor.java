@@ -9,60 +9,163 @@
  */
 package com.chiorichan.factory.event;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.stream.Stream;
 
 import org.mozilla.javascript.Context;
-import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.Scriptable;
 
+import com.chiorichan.AppConfig;
 import com.chiorichan.event.EventHandler;
 import com.chiorichan.event.Listener;
+import com.chiorichan.event.site.SiteLoadEvent;
+import com.chiorichan.factory.ScriptingContext;
+import com.chiorichan.factory.ScriptingProcessor;
+import com.chiorichan.logger.Log;
+import com.chiorichan.site.Site;
+import com.chiorichan.site.SiteManager;
+import com.chiorichan.tasks.TaskManager;
+import com.chiorichan.utils.UtilEncryption;
+import com.google.common.collect.Maps;
+import com.google.gson.GsonBuilder;
 
-public class PreCoffeeProcessor implements Listener
+/**
+ * Compiles CoffeeScript using the CoffeeScript compiler, which is only evaluated once and shared between compiles.
+ * Compiled JavaScript is cached in memory and in the site temp directory keyed by the source md5, so restarts don't recompile.
+ * Each site's CoffeeScript files are compiled in the background when the site loads.
+ */
+public class PreCoffeeProcessor implements ScriptingProcessor, Listener
 {
-	@EventHandler( )
-	public void onEvent( PreEvalEvent event )
+	private static final RhinoScope coffee = new RhinoScope( "coffee-script.js" );
+
+	private static final CompiledOutputCache cache = new CompiledOutputCache( "js", AppConfig.get().getInt( "advanced.processors.coffeeCacheSize", 256 ) );
+
+	private static boolean isCoffee( String name )
 	{
-		if ( !event.context().contentType().endsWith( "coffee" ) && !event.context().contentType().endsWith( "litcoffee" ) && !event.context().contentType().endsWith( "coffee.md" ) )
-			return;
-		
-		ClassLoader classLoader = getClass().getClassLoader();
-		InputStream inputStream = classLoader.getResourceAsStream( "com/chiorichan/coffee-script.js" );
-		
-		try
+		return name != null && ( name.endsWith( "coffee" ) || name.endsWith( "coffee.md" ) );
+	}
+
+	private static boolean isLiterate( String name )
+	{
+		return name != null && ( name.endsWith( "litcoffee" ) || name.endsWith( "coffee.md" ) );
+	}
+
+	private static File cacheDirectory( Site site )
+	{
+		return AppConfig.get().getBoolean( "advanced.processors.coffeeDiskCache", true ) ? new File( site.directoryTemp(), "coffee" ) : null;
+	}
+
+	private static String compile( String source, String filename, File cacheDir ) throws IOException
+	{
+		boolean literate = isLiterate( filename );
+		String key = UtilEncryption.md5( source ) + ( literate ? "-lit" : "" );
+		String js = cache.get( key, cacheDir );
+
+		if ( js == null )
 		{
-			Reader reader = new InputStreamReader( inputStream, "UTF-8" );
-			
-			Context context = Context.enter();
-			context.setOptimizationLevel( -1 ); // Without this, Rhino hits a 64K bytecode limit and fails
-			
-			try
-			{
-				Scriptable globalScope = context.initStandardObjects();
-				context.evaluateReader( globalScope, reader, "coffee-script.js", 0, null );
-				
-				Scriptable compileScope = context.newObject( globalScope );
-				compileScope.setParentScope( globalScope );
-				compileScope.put( "coffeeScriptSource", compileScope, event.context().readString() );
-				
-				event.context().resetAndWrite( ( ( String ) context.evaluateString( compileScope, String.format( "CoffeeScript.compile(coffeeScriptSource, %s);", String.format( "{bare: %s, filename: '%s'}", true, event.context().filename() ) ), "CoffeeScriptCompiler-" + event.context().filename(), 0, null ) ).getBytes() );
-			}
-			finally
+			Map<String, Object> compilerOptions = Maps.newHashMap();
+
+			compilerOptions.put( "bare", true );
+			compilerOptions.put( "literate", literate );
+			compilerOptions.put( "filename", filename == null ? "" : filename );
+
+			String json = new GsonBuilder().create().toJson( compilerOptions );
+
+			synchronized ( coffee )
 			{
-				reader.close();
-				Context.exit();
+				Context context = RhinoScope.enter();
+
+				try
+				{
+					Scriptable compileScope = coffee.newScope( context );
+					compileScope.put( "coffeeScriptSource", compileScope, source );
+
+					js = Context.toString( context.evaluateString( compileScope, "CoffeeScript.compile(coffeeScriptSource, " + json + ");", "CoffeeScriptCompiler-" + filename, 0, null ) );
+				}
+				finally
+				{
+					Context.exit();
+				}
 			}
+
+			cache.put( key, js, cacheDir );
+		}
+
+		return js;
+	}
+
+	/**
+	 * Compiles every CoffeeScript file within the site directory, populating the cache before the first request
+	 */
+	private static void precompile( Site site )
+	{
+		File cacheDir = cacheDirectory( site );
+		int count = 0;
+
+		try ( Stream<Path> paths = Files.walk( site.directory().toPath() ) )
+		{
+			for ( Path path : ( Iterable<Path> ) paths.filter( p -> isCoffee( p.getFileName().toString() ) && Files.isRegularFile( p ) )::iterator )
+				try
+				{
+					compile( new String( Files.readAllBytes( path ), StandardCharsets.UTF_8 ), path.toString(), cacheDir );
+					count++;
+				}
+				catch ( RhinoException e )
+				{
+					Log.get().warning( "Failed to precompile CoffeeScript file '" + path + "': " + e.getMessage() );
+				}
 		}
-		catch ( JavaScriptException e )
+		catch ( IOException e )
 		{
+			Log.get().warning( "Failed to precompile CoffeeScript for site '" + site.getId() + "': " + e.getMessage() );
+		}
+
+		if ( count > 0 )
+			Log.get().fine( String.format( "Precompiled %s CoffeeScript files for site '%s'", count, site.getId() ) );
+	}
+
+	@EventHandler( )
+	public void onSiteLoadEvent( SiteLoadEvent event )
+	{
+		if ( AppConfig.get().getBoolean( "advanced.processors.coffeePrecompile", true ) )
+			TaskManager.instance().runTaskAsynchronously( SiteManager.instance(), () -> precompile( event.getSite() ) );
+	}
+
+	@Override
+	public String[] contentTypes()
+	{
+		return new String[] {};
+	}
+
+	@Override
+	public String[] shells()
+	{
+		return new String[] { "coffee", "litcoffee", "md" };
+	}
+
+	@Override
+	public void process( ScriptingContext context )
+	{
+		if ( !isCoffee( context.contentType() ) && !isCoffee( context.filename() ) )
 			return;
+
+		try
+		{
+			context.resetAndWrite( compile( context.readString(), context.filename(), cacheDirectory( context.site() ) ) );
+		}
+		catch ( RhinoException e )
+		{
+			Log.get().warning( "Failed to compile CoffeeScript file '" + context.filename() + "': " + e.getMessage() );
 		}
 		catch ( IOException e )
 		{
-			return;
+			e.printStackTrace();
 		}
 	}
 }
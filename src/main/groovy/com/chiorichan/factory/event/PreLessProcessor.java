@@ -11,97 +11,193 @@ package com.chiorichan.factory.event;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.mozilla.javascript.Context;
-import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.Scriptable;
-import org.mozilla.javascript.ScriptableObject;
 
-import com.chiorichan.event.EventHandler;
-import com.chiorichan.event.Listener;
+import com.chiorichan.AppConfig;
+import com.chiorichan.ServerFileWatcher;
+import com.chiorichan.factory.ScriptingContext;
+import com.chiorichan.factory.ScriptingProcessor;
+import com.chiorichan.factory.parsers.LessImportParser;
 import com.chiorichan.logger.Log;
+import com.chiorichan.utils.UtilEncryption;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
 import com.google.gson.GsonBuilder;
 
-public class PreLessProcessor implements Listener
+/**
+ * Compiles Less stylesheets using the Less.js compiler, which is only evaluated once and shared between compiles.
+ * Compiled CSS is cached in memory and in the site temp directory, keyed by the site, file path and source plus the fingerprint of every imported file.
+ */
+public class PreLessProcessor implements ScriptingProcessor
 {
-	@EventHandler( )
-	public void onEvent( PreEvalEvent event )
+	private static final RhinoScope less = new RhinoScope( "less-rhino-1.7.4.js" );
+
+	private static final CompiledOutputCache cache = new CompiledOutputCache( "css", AppConfig.get().getInt( "advanced.processors.lessCacheSize", 256 ) );
+
+	/**
+	 * The files imported by each source the last time it was compiled, keyed by {@link #sourceKey(ScriptingContext)}
+	 */
+	private static final Cache<String, Set<File>> imports = CacheBuilder.newBuilder().maximumSize( 1024 ).build();
+
+	/**
+	 * The cache keys compiled from each source and imported file, so the file watcher can evict them on change
+	 */
+	private static final Map<File, Set<String>> dependents = new ConcurrentHashMap<>();
+
+	private static final Set<File> watched = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Two files with identical source may import different files relative to their own directory, so the md5 alone is not enough
+	 */
+	private static String sourceKey( ScriptingContext context ) throws IOException
 	{
-		if ( !event.context().contentType().equals( "stylesheet/less" ) || !event.context().shell().equals( "less" ) )
-			return;
+		String path = context.isVirtual() ? "" : context.file().getCanonicalPath();
+		return UtilEncryption.md5( context.site().getId() + ";" + path + ";" + context.md5() );
+	}
 
-		ClassLoader classLoader = getClass().getClassLoader();
-		InputStream inputStream = classLoader.getResourceAsStream( "com/chiorichan/less-rhino-1.7.4.js" );
+	private static String cacheKey( String sourceKey, Set<File> files )
+	{
+		StringBuilder sb = new StringBuilder( sourceKey );
+		for ( File file : files )
+			sb.append( ';' ).append( file.getAbsolutePath() ).append( ':' ).append( file.lastModified() ).append( ':' ).append( file.length() );
+		return UtilEncryption.md5( sb.toString() );
+	}
 
-		try
+	private static void track( String key, Set<File> files )
+	{
+		for ( File file : files )
 		{
-			Reader reader = new InputStreamReader( inputStream, "UTF-8" );
+			dependents.computeIfAbsent( file, f -> ConcurrentHashMap.newKeySet() ).add( key );
+
+			File dir = file.getParentFile();
+			if ( dir != null && watched.add( dir ) )
+				try
+				{
+					ServerFileWatcher.instance().register( dir, ( kind, changed, isDirectory ) ->
+					{
+						Set<String> keys = dependents.remove( changed.getAbsoluteFile() );
+						if ( keys != null )
+							for ( String k : keys )
+								cache.invalidate( k );
+					} );
+				}
+				catch ( IOException e )
+				{
+					watched.remove( dir );
+					Log.get().warning( "Failed to watch directory '" + dir + "' for Less changes: " + e.getMessage() );
+				}
+		}
+	}
 
-			Context context = Context.enter();
-			context.setOptimizationLevel( -1 ); // Without this, Rhino hits a 64K bytecode limit and fails
+	private static String compile( String source, String filename ) throws IOException
+	{
+		Map<String, Object> compilerOptions = Maps.newHashMap();
 
-			try
-			{
-				ScriptableObject globalScope = context.initStandardObjects();
+		compilerOptions.put( "filename", filename );
+		compilerOptions.put( "compress", true );
 
-				context.evaluateReader( globalScope, reader, "less-rhino-1.7.4.js", 0, null );
+		String json = new GsonBuilder().create().toJson( compilerOptions );
 
-				Scriptable compileScope = context.newObject( globalScope );
-				compileScope.setParentScope( globalScope );
-				compileScope.put( "lessSource", compileScope, event.context().readString() );
+		synchronized ( less )
+		{
+			Context context = RhinoScope.enter();
 
-				String filename = "dummyFile.less";
+			try
+			{
+				Scriptable compileScope = less.newScope( context );
+				compileScope.put( "lessSource", compileScope, source );
 
-				if ( event.context().filename() != null && !event.context().filename().isEmpty() )
-					filename = new File( event.context().filename() ).getName();
+				Object result = context.evaluateString( compileScope, "var css; new less.Parser(" + json + ").parse(lessSource, function (e, tree) { if (e) throw e; css = tree.toCSS(" + json + "); }); css;", "less2css.js", 0, null );
 
-				/*
-				 * try
-				 * {
-				 * code = new LessImportParser().runParser( code, new File( meta.fileName ).getParentFile().getAbsoluteFile() );
-				 * }
-				 * catch ( ShellExecuteException e )
-				 * {
-				 * e.printStackTrace();
-				 * }
-				 */
+				if ( result instanceof String )
+					return ( String ) result;
 
-				Map<String, Object> compilerOptions = Maps.newHashMap();
+				Log.get().warning( "We did not get what we expected back from Less.js: " + result );
+				return null;
+			}
+			finally
+			{
+				Context.exit();
+			}
+		}
+	}
 
-				compilerOptions.put( "filename", filename );
-				compilerOptions.put( "compress", true );
+	@Override
+	public String[] contentTypes()
+	{
+		return new String[] { "stylesheet/less" };
+	}
+
+	@Override
+	public String[] shells()
+	{
+		return new String[] { "less" };
+	}
 
-				String json = new GsonBuilder().create().toJson( compilerOptions );
+	@Override
+	public void process( ScriptingContext context )
+	{
 
-				context.evaluateString( compileScope, "var parser = new less.Parser(" + json + ");", "less2css.js", 0, null );
+		String filename = "dummyFile.less";
+		File rootDir = null;
 
-				// String script = "parser.parse(lessSource, function (e, tree) { source = 'Hello World'; } );";
+		if ( context.filename() != null && !context.filename().isEmpty() )
+			filename = new File( context.filename() ).getName();
+		if ( !context.isVirtual() )
+			rootDir = context.file().getAbsoluteFile().getParentFile();
 
-				// Loader.getLogger().debug( "" + context.evaluateString( compileScope, script, "less2css.js", 0, null ) );
+		File cacheDir = AppConfig.get().getBoolean( "advanced.processors.lessDiskCache", true ) ? new File( context.site().directoryTemp(), "less" ) : null;
 
-				// Loader.getLogger().debug( "" + globalScope.get( "source" ) );
+		try
+		{
+			String sourceKey = sourceKey( context );
+			Set<File> files = imports.getIfPresent( sourceKey );
+			String css = files == null ? null : cache.get( cacheKey( sourceKey, files ), cacheDir );
 
-				if ( globalScope.get( "source" ) != null && globalScope.get( "source" ) instanceof String )
-					event.context().resetAndWrite( ( String ) globalScope.get( "source" ) );
-				else if ( globalScope.get( "source" ) != null )
-					Log.get().warning( "We did not get what we expected back from Less.js: " + globalScope.get( "source" ) );
-			}
-			finally
+			if ( css == null )
 			{
-				reader.close();
-				Context.exit();
+				LessImportParser parser = new LessImportParser();
+				String source = parser.runParser( context.readString(), rootDir );
+
+				files = new LinkedHashSet<>();
+				if ( !context.isVirtual() )
+					files.add( context.file().getAbsoluteFile() );
+				files.addAll( parser.getImports() );
+				imports.put( sourceKey, files );
+
+				String key = cacheKey( sourceKey, files );
+				css = cache.get( key, cacheDir );
+
+				if ( css == null )
+				{
+					css = compile( source, filename );
+					if ( css == null )
+						return;
+					cache.put( key, css, cacheDir );
+				}
+
+				track( key, files );
 			}
+
+			if ( context.factory() != null )
+				for ( File file : files )
+					context.factory().dependsOn( file );
+
+			context.resetAndWrite( css );
 		}
-		catch ( JavaScriptException e )
+		catch ( RhinoException e )
 		{
-			e.printStackTrace();
+			Log.get().warning( "Failed to compile Less stylesheet '" + filename + "': " + e.getMessage() );
 		}
-		catch ( IOException e )
+		catch ( Exception e )
 		{
 			e.printStackTrace();
 		}
@@ -0,0 +1,82 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.factory.event;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Evaluates a bundled JavaScript compiler into a Rhino scope once so each compile only needs a light child scope.
+ * The standard objects are sealed, while the compiler itself keeps internal state, so compiles are serialized on this scope.
+ */
+class RhinoScope
+{
+	private final String resource;
+	private ScriptableObject globalScope = null;
+
+	RhinoScope( String resource )
+	{
+		this.resource = resource;
+	}
+
+	/**
+	 * Enters a Rhino context for the current thread, the caller must call {@link Context#exit()} when finished
+	 *
+	 * @return The entered context
+	 */
+	static Context enter()
+	{
+		Context context = Context.enter();
+		context.setOptimizationLevel( -1 ); // Without this, Rhino hits a 64K bytecode limit and fails
+		return context;
+	}
+
+	private ScriptableObject globalScope( Context context ) throws IOException
+	{
+		if ( globalScope == null )
+		{
+			InputStream inputStream = getClass().getClassLoader().getResourceAsStream( "com/chiorichan/" + resource );
+			if ( inputStream == null )
+				throw new IOException( "Could not find resource " + resource );
+
+			try ( Reader reader = new InputStreamReader( inputStream, StandardCharsets.UTF_8 ) )
+			{
+				ScriptableObject scope = context.initStandardObjects( null, true );
+				context.evaluateReader( scope, reader, resource, 0, null );
+				globalScope = scope;
+			}
+		}
+		return globalScope;
+	}
+
+	/**
+	 * Creates a new scope for a single compile, the compiler is inherited from the shared global scope.
+	 * Must be called and used while synchronized on this instance.
+	 *
+	 * @param context The current Rhino context
+	 * @return The new compile scope
+	 * @throws IOException if the compiler resource could not be read
+	 */
+	Scriptable newScope( Context context ) throws IOException
+	{
+		ScriptableObject global = globalScope( context );
+		Scriptable scope = context.newObject( global );
+		scope.setPrototype( global );
+		scope.setParentScope( null );
+		return scope;
+	}
+}
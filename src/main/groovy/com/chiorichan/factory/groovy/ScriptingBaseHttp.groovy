@@ -198,6 +198,16 @@ abstract class ScriptingBaseHttp extends Builtin
 		return url_to_login() + "?logout"
 	}
 
+	/**
+	 * Returns the fingerprinted uri to an asset bundle, building it if needed
+	 * @param name The bundle name from the site assets.bundles configuration
+	 * @return The bundle uri, will return null if no such bundle is configured
+	 */
+	String url_to_bundle( String name )
+	{
+		return getSite().getAssetBundles().url( name )
+	}
+
 	void define( String key, Object val )
 	{
 		getSession().setGlobal( key, val );
@@ -460,9 +470,13 @@ abstract class ScriptingBaseHttp extends Builtin
 		return getRequest().getFullUrl( subdomain, prefix );
 	}
 
+	/**
+	 * Returns the factory evaluating this script, async includes have their own factory bound as __FACTORY__
+	 */
 	ScriptingFactory getScriptingFactory()
 	{
-		return getRequest().getScriptingFactory();
+		ScriptingFactory factory = getBindingProperty( "__FACTORY__" ) as ScriptingFactory
+		return factory == null ? getRequest().getScriptingFactory() : factory;
 	}
 
 	boolean isAdmin()
@@ -497,21 +511,26 @@ abstract class ScriptingBaseHttp extends Builtin
 
 	ScriptingFactory getEvalFactory()
 	{
-		return getRequest().getScriptingFactory()
+		return getScriptingFactory()
 	}
 
 	Object include( String pack ) throws MultipleException, ScriptingException
 	{
-		return ScriptingContext.fromPackage( getSite(), pack ).request( getRequest() ).eval()
+		return ScriptingContext.fromPackage( getSite(), pack ).request( getRequest() ).factory( getScriptingFactory() ).eval()
+	}
+
+	String includeAsync( String pack ) throws MultipleException, ScriptingException
+	{
+		return getScriptingFactory().includeAsync( ScriptingContext.fromPackage( getSite(), pack ).request( getRequest() ) )
 	}
 
 	Object require( String pack ) throws IOException, MultipleException, ScriptingException
 	{
-		return ScriptingContext.fromPackageWithException( getSite(), pack ).request( getRequest() ).eval()
+		return ScriptingContext.fromPackageWithException( getSite(), pack ).request( getRequest() ).factory( getScriptingFactory() ).eval()
 	}
 
 	SQLModelBuilder model( String pack ) throws IOException, MultipleException, ScriptingException
 	{
-		return ScriptingContext.fromPackageWithException( getSite(), pack ).request( getRequest() ).model()
+		return ScriptingContext.fromPackageWithException( getSite(), pack ).request( getRequest() ).factory( getScriptingFactory() ).model()
 	}
 }
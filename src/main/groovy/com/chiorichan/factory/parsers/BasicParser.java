@@ -9,6 +9,8 @@
  */
 package com.chiorichan.factory.parsers;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -16,20 +18,55 @@ import com.chiorichan.utils.UtilStrings;
 import org.apache.commons.lang3.Validate;
 
 /**
- * Used for basic parsing of code blocks, e.g., < !-- this_is_a_method(argument) -->
+ * Scans the source once, appending each resolved directive into a single builder.
+ * Resolved results are not scanned again.
  */
 public abstract class BasicParser
 {
-	private Pattern p1;
-	private Pattern p2;
+	private static final Map<String, Pattern> patterns = new ConcurrentHashMap<>();
 
+	static Pattern compile( String pattern )
+	{
+		return patterns.computeIfAbsent( pattern, Pattern::compile );
+	}
+
+	static String[] splitArguments( Matcher matcher )
+	{
+		String[] args = matcher.group( 1 ).split( "[ ]?,[ ]?" );
+		String[] args2 = new String[args.length + 1];
+
+		args2[0] = matcher.group( 0 );
+
+		for ( int i = 0; i < args.length; i++ )
+			args2[i + 1] = UtilStrings.trimAll( args[i].trim(), '"' );
+
+		return args2;
+	}
+
+	private Pattern pattern;
+
+	/**
+	 * @param pattern The directive pattern, the entire match is replaced and the first group holds the arguments
+	 */
+	public BasicParser( String pattern )
+	{
+		Validate.notEmpty( pattern );
+
+		this.pattern = compile( pattern );
+	}
+
+	/**
+	 * @deprecated The entire match of the first pattern is now replaced, use {@link #BasicParser(String)}
+	 */
+	@Deprecated
 	public BasicParser( String patternOne, String patternTwo )
 	{
-		Validate.notEmpty( patternOne );
-		Validate.notEmpty( patternTwo );
+		this( patternOne );
+	}
 
-		p1 = Pattern.compile( patternOne );
-		p2 = Pattern.compile( patternTwo );
+	Pattern pattern()
+	{
+		return pattern;
 	}
 
 	public String runParser( String source ) throws Exception
@@ -37,32 +74,24 @@ public abstract class BasicParser
 		if ( source == null || source.isEmpty() )
 			return "";
 
-		Matcher m1 = p1.matcher( source );
-		Matcher m2 = p2.matcher( source );
+		Matcher matcher = pattern.matcher( source );
 
-		while ( m1.find() && m2.find() )
-		{
-			String[] args = m1.group( 1 ).split( "[ ]?,[ ]?" );
-			String[] args2 = new String[args.length + 1];
-
-			args2[0] = m1.group( 0 );
-
-			for ( int i = 0; i < args.length; i++ )
-				args2[i + 1] = UtilStrings.trimAll( args[i].trim(), '"' );
+		if ( !matcher.find() )
+			return source;
 
-			String result = resolveMethod( args2 );
+		StringBuilder output = new StringBuilder( source.length() );
+		int lastIndex = 0;
 
-			if ( result == null )
-				result = "";
-
-			source = new StringBuilder( source ).replace( m2.start( 1 ), m2.end( 1 ), result ).toString();
+		do
+		{
+			String result = resolveMethod( splitArguments( matcher ) );
 
-			// We have to reset the matcher since the source changes with each loop
-			m1 = p1.matcher( source );
-			m2 = p2.matcher( source );
+			output.append( source, lastIndex, matcher.start() ).append( result == null ? "" : result );
+			lastIndex = matcher.end();
 		}
+		while ( matcher.find() );
 
-		return source;
+		return output.append( source, lastIndex, source.length() ).toString();
 	}
 
 	public abstract String resolveMethod( String... args ) throws Exception;
@@ -15,14 +15,34 @@ public abstract class HTMLCommentParser extends BasicParser
 {
 	// TODO Check method names are a-z, A-Z, and 0-9.
 
+	static String commentPattern( String methods )
+	{
+		return "<!--[\\t ]*(?:" + methods + ")\\((.*?)\\);*[\\t ]*-->";
+	}
+
+	private final String[] methods;
+
 	public HTMLCommentParser( String... methods )
 	{
-		this( Joiner.on( "|" ).join( methods ) );
+		super( commentPattern( Joiner.on( "|" ).join( methods ) ) );
+		this.methods = methods;
+	}
+
+	/**
+	 * @param match The entire match, i.e., args[0] of {@link #resolveMethod(String...)}
+	 * @return The method name used by the match
+	 */
+	static String methodName( String match )
+	{
+		String method = match.substring( 4 ).trim();
+		return method.substring( 0, method.indexOf( '(' ) ).trim();
 	}
 
-	public HTMLCommentParser( String methods )
+	/**
+	 * @return The method names this parser resolves
+	 */
+	public String[] methods()
 	{
-		super( "<!--[\\t ]*(?:" + methods + ")\\((.*)\\);*[\\t ]*-->", "(<!--[\\t ]*(?:" + methods + ")\\((.*)\\);*[\\t ]*-->)" );
-		// super( "<!-- *" + argumentName + "\\((.*)\\) *-->", "(<!-- *" + argumentName + "\\(.*\\) *-->)" );
+		return methods;
 	}
 }
@@ -19,7 +19,7 @@ import com.chiorichan.site.Site;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
 /**
- * Using the {@link HTMLCommentParser} we attempt to parse the source for include methods, i.e., {@literal <!-- include(com.chiorichan.widget.menu) -->}
+ * Using the {@link HTMLCommentParser} we attempt to parse the source for include methods, i.e., {@literal <!-- include(com.chiorichan.widget.menu) -->} or {@literal <!-- includeAsync(com.chiorichan.widget.menu) -->}
  */
 public class IncludesParser extends HTMLCommentParser
 {
@@ -29,7 +29,7 @@ public class IncludesParser extends HTMLCommentParser
 
 	public IncludesParser()
 	{
-		super( "include" );
+		super( "include", "includeAsync" );
 	}
 
 	@Override
@@ -38,6 +38,9 @@ public class IncludesParser extends HTMLCommentParser
 		if ( args.length > 2 )
 			Log.get( factory ).warning( "EvalFactory: include() method only accepts one argument, ignored." );
 
+		if ( "includeAsync".equals( methodName( args[0] ) ) )
+			return factory.includeAsync( ScriptingContext.fromAuto( context.site(), args[1] ).request( context.request() ) );
+
 		// TODO Prevent infinite loops!
 		ScriptingResult result = factory.eval( ScriptingContext.fromAuto( context.site(), args[1] ).request( context.request() ) );
 
@@ -11,29 +11,65 @@ package com.chiorichan.factory.parsers;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import com.chiorichan.utils.UtilIO;
 import org.apache.commons.io.FileUtils;
 
 import com.chiorichan.logger.Log;
 
+/**
+ * Inlines Less {@literal @import} statements, nested imports included, while keeping track of every file imported
+ */
 public class LessImportParser extends BasicParser
 {
 	File rootDir = null;
+	private final Set<File> imports;
 
 	public LessImportParser()
 	{
-		super( "@import[: ]*(.*);", "(@import[: ]*.*;)" );
+		this( new LinkedHashSet<>() );
+	}
+
+	private LessImportParser( Set<File> imports )
+	{
+		super( "@import[: ]*(.*?);" );
+		this.imports = imports;
+	}
+
+	/**
+	 * @return Every file imported by the last parsed source, in order of discovery
+	 */
+	public Set<File> getImports()
+	{
+		return Collections.unmodifiableSet( imports );
 	}
 
 	@Override
 	public String resolveMethod( String... args ) throws Exception
 	{
-		File imp = UtilIO.isAbsolute( args[0] ) || args[0].startsWith( "\\" ) || rootDir == null ? new File( args[0] ) : new File( rootDir, args[0] );
+		String path = args[1].trim();
+		if ( path.startsWith( "url(" ) && path.endsWith( ")" ) )
+			path = path.substring( 4, path.length() - 1 ).trim();
+		path = path.replaceAll( "^[\"']|[\"']$", "" );
+
+		// Plain CSS and remote imports are left for the browser
+		if ( path.endsWith( ".css" ) || path.contains( "://" ) || path.startsWith( "//" ) )
+			return args[0];
+
+		if ( !path.contains( "." ) )
+			path = path + ".less";
+
+		File imp = UtilIO.isAbsolute( path ) || path.startsWith( "\\" ) || rootDir == null ? new File( path ) : new File( rootDir, path );
+
+		if ( !imports.add( imp.getAbsoluteFile() ) )
+			return "/* Skipped import of file '" + imp.getName() + "', it was already imported */";
 
 		try
 		{
-			return FileUtils.readFileToString( imp );
+			return new LessImportParser( imports ).runParser( FileUtils.readFileToString( imp ), imp.getAbsoluteFile().getParentFile() );
 		}
 		catch ( IOException e )
 		{
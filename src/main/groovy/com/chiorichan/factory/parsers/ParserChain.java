@@ -0,0 +1,151 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.factory.parsers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Matches the directives of several {@link HTMLCommentParser} in a single scan of the source.
+ * Directives are resolved in the order the parsers were chained, e.g., all includes before any yields, then spliced into one builder.
+ * Like running the parsers one after another, the result of a directive is scanned again by the parsers chained after its own,
+ * so included content still has its requires, locales, yields and sections resolved.
+ * The scan result is cached when the source provides a fingerprint, so unchanged files are only scanned once.
+ * The cache is keyed by the fingerprint and the chained methods, as a chain missing a parser, e.g., links without a request, matches fewer directives.
+ */
+public class ParserChain
+{
+	private static final Cache<String, List<Directive>> directiveCache = CacheBuilder.newBuilder().maximumSize( 1000 ).build();
+
+	private static class Directive
+	{
+		final int start;
+		final int end;
+		final String method;
+		final String[] args;
+
+		Directive( Matcher matcher )
+		{
+			start = matcher.start();
+			end = matcher.end();
+			args = BasicParser.splitArguments( matcher );
+
+			String match = matcher.group( 0 );
+			method = match.substring( 4, match.indexOf( '(' ) ).trim();
+		}
+	}
+
+	private final List<HTMLCommentParser> parsers = new ArrayList<>();
+	private final Map<String, HTMLCommentParser> methods = new LinkedHashMap<>();
+	private final Pattern pattern;
+	private final String signature;
+
+	public ParserChain( HTMLCommentParser... parsers )
+	{
+		for ( HTMLCommentParser parser : parsers )
+			if ( parser != null )
+			{
+				this.parsers.add( parser );
+				for ( String method : parser.methods() )
+					methods.put( method, parser );
+			}
+
+		signature = Joiner.on( "|" ).join( methods.keySet() );
+		pattern = BasicParser.compile( HTMLCommentParser.commentPattern( signature ) );
+	}
+
+	private List<Directive> scan( String source )
+	{
+		Matcher matcher = pattern.matcher( source );
+
+		if ( !matcher.find() )
+			return Collections.emptyList();
+
+		List<Directive> directives = new ArrayList<>();
+		do
+			directives.add( new Directive( matcher ) );
+		while ( matcher.find() );
+		return directives;
+	}
+
+	public String runParser( String source ) throws Exception
+	{
+		return runParser( source, null );
+	}
+
+	/**
+	 * @param source      The source to parse
+	 * @param fingerprint Uniquely identifies this exact source for caching the scan, null to always scan
+	 * @return The parsed source
+	 */
+	public String runParser( String source, String fingerprint ) throws Exception
+	{
+		if ( source == null || source.isEmpty() )
+			return "";
+
+		String key = fingerprint == null ? null : fingerprint + "#" + signature;
+		List<Directive> directives = key == null ? null : directiveCache.getIfPresent( key );
+
+		if ( directives == null )
+		{
+			directives = scan( source );
+			if ( key != null )
+				directiveCache.put( key, directives );
+		}
+
+		if ( directives.isEmpty() )
+			return source;
+
+		String[] results = new String[directives.size()];
+
+		for ( int p = 0; p < parsers.size(); p++ )
+		{
+			HTMLCommentParser parser = parsers.get( p );
+			ParserChain following = null;
+
+			for ( int i = 0; i < directives.size(); i++ )
+				if ( methods.get( directives.get( i ).method ) == parser )
+				{
+					String result = parser.resolveMethod( directives.get( i ).args );
+
+					if ( result != null && result.contains( "<!--" ) && p + 1 < parsers.size() )
+					{
+						if ( following == null )
+							following = new ParserChain( parsers.subList( p + 1, parsers.size() ).toArray( new HTMLCommentParser[0] ) );
+						result = following.runParser( result );
+					}
+
+					results[i] = result == null ? "" : result;
+				}
+		}
+
+		StringBuilder output = new StringBuilder( source.length() );
+		int lastIndex = 0;
+
+		for ( int i = 0; i < directives.size(); i++ )
+		{
+			Directive directive = directives.get( i );
+			// Unresolved directives belong to a parser missing from this chain and are left as is
+			output.append( source, lastIndex, directive.start ).append( results[i] == null ? directive.args[0] : results[i] );
+			lastIndex = directive.end;
+		}
+
+		return output.append( source, lastIndex, source.length() ).toString();
+	}
+}
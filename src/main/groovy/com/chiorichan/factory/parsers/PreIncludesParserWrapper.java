@@ -9,23 +9,62 @@
  */
 package com.chiorichan.factory.parsers;
 
-import com.chiorichan.event.EventHandler;
-import com.chiorichan.event.EventPriority;
-import com.chiorichan.event.Listener;
-import com.chiorichan.factory.event.PreEvalEvent;
+import com.chiorichan.factory.ScriptingContext;
+import com.chiorichan.factory.ScriptingProcessor;
 
 /**
- * Wraps a {@link BasicParser} so it can be called at the lowest level before pre eval processing
+ * Wraps the {@link HTMLCommentParser} implementations in a {@link ParserChain} so they can be called at the lowest level before pre eval processing
  */
-public class PreIncludesParserWrapper implements Listener
+public class PreIncludesParserWrapper implements ScriptingProcessor
 {
-	@EventHandler( priority = EventPriority.LOWEST )
-	public void onEvent( PreEvalEvent event ) throws Exception
+	@Override
+	public String[] contentTypes()
 	{
-		event.context().resetAndWrite( new IncludesParser().runParser( event.context().readString(), event.context().site(), event.context(), event.context().factory() ) );
-		event.context().resetAndWrite( new RequiresParser().runParser( event.context().readString(), event.context().site(), event.context(), event.context().factory() ) );
-		event.context().resetAndWrite( new LocaleParser().runParser( event.context().readString(), event.context().site() ) );
-		event.context().resetAndWrite( new YieldParser().runParser( event.context().readString(), event.context().factory() ) );
-		event.context().resetAndWrite( new SectionParser().runParser( event.context().readString(), event.context().factory() ) );
+		return new String[] {};
+	}
+
+	@Override
+	public String[] shells()
+	{
+		return new String[] {};
+	}
+
+	@Override
+	public void process( ScriptingContext context ) throws Exception
+	{
+		String source = context.readString();
+
+		LinksParser links = null;
+		if ( context.request() != null && context.site() != null )
+		{
+			links = new LinksParser();
+			links.request = context.request();
+			links.site = context.site();
+		}
+
+		IncludesParser includes = new IncludesParser();
+		includes.site = context.site();
+		includes.context = context;
+		includes.factory = context.factory();
+
+		RequiresParser requires = new RequiresParser();
+		requires.site = context.site();
+		requires.context = context;
+		requires.factory = context.factory();
+
+		LocaleParser locale = new LocaleParser();
+		locale.site = context.site();
+
+		YieldParser yield = new YieldParser();
+		yield.factory = context.factory();
+
+		SectionParser section = new SectionParser();
+		section.factory = context.factory();
+
+		String fingerprint = context.isVirtual() ? null : String.format( "%s:%s:%s:%s", context.filename(), context.file().lastModified(), source.length(), source.hashCode() );
+		String result = new ParserChain( links, includes, requires, locale, yield, section ).runParser( source, fingerprint );
+
+		if ( result != source )
+			context.resetAndWrite( result );
 	}
 }
@@ -0,0 +1,177 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.http;
+
+import com.chiorichan.AppConfig;
+import com.chiorichan.ContentTypes;
+import com.chiorichan.ServerFileWatcher;
+import com.chiorichan.net.NetworkManager;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads and caches directory contents for {@link HttpHandler#processDirectoryListing()}.
+ * Attributes are read in one call per entry and the listing is kept until the file watcher reports a change within the directory.
+ */
+class DirectoryListing
+{
+	/**
+	 * The columns a listing may be sorted by
+	 */
+	static final List<String> SORTS = Collections.unmodifiableList( Arrays.asList( "name", "modified", "size", "type" ) );
+
+	static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern( "dd-MMM-yyyy HH:mm:ss" ).withZone( ZoneId.systemDefault() );
+
+	private static final Cache<String, List<Entry>> cache = CacheBuilder.newBuilder().maximumSize( AppConfig.get().getInt( "server.directoryListingCacheSize", 256 ) ).build();
+	private static final Set<String> watched = ConcurrentHashMap.newKeySet();
+
+	static class Entry
+	{
+		final String name;
+		final boolean directory;
+		final long size;
+		final long lastModified;
+		final String contentType;
+
+		Entry( String name, BasicFileAttributes attrs )
+		{
+			this.name = name;
+			directory = attrs.isDirectory();
+			size = directory ? -1 : attrs.size();
+			lastModified = attrs.lastModifiedTime().toMillis();
+			contentType = directory ? "folder" : ContentTypes.getContentType( name ).split( "," )[0];
+		}
+
+		String mainType()
+		{
+			return contentType.contains( "/" ) ? contentType.substring( 0, contentType.indexOf( "/" ) ) : contentType;
+		}
+
+		String lastModifiedString()
+		{
+			return DATE_FORMAT.format( Instant.ofEpochMilli( lastModified ) );
+		}
+
+		Map<String, Object> toMap()
+		{
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put( "name", name );
+			map.put( "directory", directory );
+			map.put( "size", size );
+			map.put( "lastModified", lastModified );
+			map.put( "type", contentType );
+			return map;
+		}
+	}
+
+	private DirectoryListing()
+	{
+
+	}
+
+	/**
+	 * @param dir The directory
+	 * @return The unsorted directory entries, possibly from cache
+	 * @throws IOException if the directory could not be read
+	 */
+	static List<Entry> list( File dir ) throws IOException
+	{
+		String key = dir.getAbsolutePath();
+		List<Entry> entries = cache.getIfPresent( key );
+
+		if ( entries == null )
+		{
+			// Watch before reading so a change made while reading still invalidates the result
+			boolean watching = watch( dir, key );
+
+			entries = new ArrayList<>();
+			try ( DirectoryStream<Path> stream = Files.newDirectoryStream( dir.toPath() ) )
+			{
+				for ( Path path : stream )
+					entries.add( new Entry( path.getFileName().toString(), Files.readAttributes( path, BasicFileAttributes.class ) ) );
+			}
+			entries = Collections.unmodifiableList( entries );
+
+			if ( watching )
+				cache.put( key, entries );
+		}
+
+		return entries;
+	}
+
+	/**
+	 * @param entries    The entries to sort
+	 * @param sort       One of name, modified, size or type
+	 * @param descending Reverse the order
+	 * @return A sorted copy, directories are always listed first
+	 */
+	static List<Entry> sort( List<Entry> entries, String sort, boolean descending )
+	{
+		Comparator<Entry> comparator;
+		switch ( sort == null ? "name" : sort.toLowerCase() )
+		{
+			case "modified":
+				comparator = Comparator.comparingLong( e -> e.lastModified );
+				break;
+			case "size":
+				comparator = Comparator.comparingLong( e -> e.size );
+				break;
+			case "type":
+				comparator = Comparator.comparing( e -> e.contentType );
+				break;
+			default:
+				comparator = Comparator.comparing( e -> e.name.toLowerCase() );
+		}
+
+		if ( descending )
+			comparator = comparator.reversed();
+
+		List<Entry> sorted = new ArrayList<>( entries );
+		sorted.sort( Comparator.<Entry, Boolean> comparing( e -> !e.directory ).thenComparing( comparator ) );
+		return sorted;
+	}
+
+	private static boolean watch( File dir, String key )
+	{
+		if ( watched.contains( key ) )
+			return true;
+
+		try
+		{
+			ServerFileWatcher.instance().register( dir, ( kind, changed, isDirectory ) -> cache.invalidate( key ) );
+			watched.add( key );
+			return true;
+		}
+		catch ( IOException e )
+		{
+			NetworkManager.getLogger().warning( "Failed to watch directory '" + dir + "', the listing will not be cached: " + e.getMessage() );
+			return false;
+		}
+	}
+}
@@ -21,11 +21,12 @@ import com.chiorichan.event.http.RenderEvent;
 import com.chiorichan.event.http.RequestEvent;
 import com.chiorichan.factory.ScriptTraceElement;
 import com.chiorichan.factory.ScriptingContext;
+import com.chiorichan.factory.ScriptProfiler;
 import com.chiorichan.factory.ScriptingFactory;
 import com.chiorichan.factory.ScriptingResult;
-import com.chiorichan.factory.api.Builtin;
 import com.chiorichan.helpers.ANIState;
 import com.chiorichan.http.Nonce.NonceLevel;
+import com.chiorichan.http.ssl.ProtocolNegotiator;
 import com.chiorichan.http.ssl.SslLevel;
 import com.chiorichan.lang.EnumColor;
 import com.chiorichan.lang.ExceptionReport;
@@ -42,9 +43,11 @@ import com.chiorichan.logger.experimental.LogManager;
 import com.chiorichan.net.NetworkManager;
 import com.chiorichan.net.NetworkSecurity;
 import com.chiorichan.net.NetworkSecurity.IpStrikeType;
+import com.chiorichan.net.RateLimiter;
 import com.chiorichan.permission.lang.PermissionDeniedException;
 import com.chiorichan.permission.lang.PermissionDeniedException.PermissionDeniedReason;
 import com.chiorichan.session.Session;
+import com.chiorichan.site.AssetBundles;
 import com.chiorichan.site.DomainMapping;
 import com.chiorichan.site.Site;
 import com.chiorichan.site.SiteManager;
@@ -55,16 +58,19 @@ import com.chiorichan.utils.UtilStrings;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
-import com.google.common.collect.Lists;
+import com.google.gson.GsonBuilder;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderUtil;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -88,20 +94,23 @@ import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketHandshakeException;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.IllegalReferenceCountException;
 import org.codehaus.groovy.runtime.NullObject;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.logging.Level;
+import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.CONTINUE;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
@@ -132,16 +141,45 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 	}
 
 	/**
-	 * Sends the 100 continue response
+	 * Sends the 100 continue response.
+	 * Skipped on HTTP/2 where the request is only adapted once its body has been received, and a full response would end the stream.
 	 *
 	 * @param ctx the Channel
 	 */
 	private static void send100Continue( ChannelHandlerContext ctx )
 	{
+		if ( ProtocolNegotiator.isHttp2( ctx.channel() ) )
+			return;
+
 		FullHttpResponse response = new DefaultFullHttpResponse( HTTP_1_1, CONTINUE );
 		ctx.write( response );
 	}
 
+	/**
+	 * Writes a response that bypasses the {@link HttpResponseWrapper} and closes the connection,
+	 * on HTTP/2 it's instead sent on the stream of the request as closing would reset every other stream
+	 *
+	 * @param ctx      the Channel
+	 * @param request  The request being answered, may be null
+	 * @param response The response
+	 */
+	private static void writeRaw( ChannelHandlerContext ctx, HttpRequest request, FullHttpResponse response )
+	{
+		if ( ProtocolNegotiator.isHttp2( ctx.channel() ) )
+		{
+			String streamId = request == null ? null : request.headers().getAndConvert( ProtocolNegotiator.HTTP2_STREAM_ID );
+			if ( streamId != null )
+			{
+				response.headers().set( ProtocolNegotiator.HTTP2_STREAM_ID, streamId );
+				ctx.writeAndFlush( response );
+				return;
+			}
+		}
+
+		response.headers().set( HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE );
+		ctx.writeAndFlush( response ).addListener( ChannelFutureListener.CLOSE );
+	}
+
 	/**
 	 * Updates the default temporary file directory
 	 *
@@ -213,6 +251,21 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 	 */
 	private final boolean ssl;
 
+	/**
+	 * The number of requests received on this connection, the connection is closed once server.keepAliveMaxRequests is reached
+	 */
+	private int requestCount = 0;
+
+	/**
+	 * Should the connection stay open after the current response
+	 */
+	private boolean keepAlive = true;
+
+	/**
+	 * The site holding a concurrent request slot for the current request, see {@link RateLimiter#tryRequest(Site, String)}
+	 */
+	private Site rateLimitedSite = null;
+
 	/**
 	 * Constructs a new HttpHandler, used within the Netty HTTP stream
 	 *
@@ -227,12 +280,7 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 	@Override
 	public void channelInactive( ChannelHandlerContext ctx ) throws Exception
 	{
-		if ( decoder != null )
-		{
-			decoder.cleanFiles();
-			decoder.destroy();
-			decoder = null;
-		}
+		resetRequestState();
 
 		// Nullify references
 		handshaker = null;
@@ -243,6 +291,56 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 		requestFinished = false;
 	}
 
+	/**
+	 * Releases the state left behind by the previous request on this connection
+	 */
+	private void resetRequestState()
+	{
+		if ( decoder != null )
+		{
+			decoder.cleanFiles();
+			decoder.destroy();
+			decoder = null;
+		}
+
+		releaseRateLimit();
+
+		fi = null;
+		currentSite = null;
+		requestFinished = false;
+	}
+
+	private void releaseRateLimit()
+	{
+		if ( rateLimitedSite != null )
+		{
+			RateLimiter.releaseRequest( rateLimitedSite );
+			rateLimitedSite = null;
+		}
+	}
+
+	/**
+	 * @return Should the connection stay open after the current response, false if the client asked to close it, it's a HTTP/1.0 request without keep-alive or the connection reached server.keepAliveMaxRequests
+	 */
+	public boolean isKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	@Override
+	public void userEventTriggered( ChannelHandlerContext ctx, Object evt ) throws Exception
+	{
+		// WebSocket connections are long lived by design, so only idle HTTP connections are closed
+		if ( evt instanceof IdleStateEvent && handshaker == null )
+		{
+			NetworkManager.getLogger().finest( "Closing idle connection " + ctx.channel().remoteAddress() );
+			ctx.close();
+			return;
+		}
+
+		ctx.fireUserEventTriggered( evt );
+	}
+
 	@Override
 	public void exceptionCaught( ChannelHandlerContext ctx, Throwable cause ) throws Exception
 	{
@@ -260,8 +358,7 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 				sb.append( "<hr>\n" );
 				sb.append( Versioning.getHTMLFooter() );
 
-				FullHttpResponse response = new DefaultFullHttpResponse( HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf( 500 ), Unpooled.wrappedBuffer( sb.toString().getBytes() ) );
-				ctx.write( response );
+				writeRaw( ctx, requestOrig, new DefaultFullHttpResponse( HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf( 500 ), Unpooled.wrappedBuffer( sb.toString().getBytes() ) ) );
 
 				return;
 			}
@@ -403,6 +500,10 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 		{
 			log.log( Level.INFO, "%s {code=%s}", response.getHttpMsg(), response.getHttpCode() );
 
+			// Async includes still running are of no use once the request is torn down
+			if ( request.getScriptingFactory() != null )
+				request.getScriptingFactory().cancelAsync();
+
 			if ( !response.isCommitted() )
 				response.sendResponse();
 
@@ -411,6 +512,7 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 
 			request.finish();
 			requestFinished = true;
+			releaseRateLimit();
 		}
 		catch ( Throwable t )
 		{
@@ -528,6 +630,20 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 		if ( response.isCommitted() )
 			return;
 
+		String profilerUri = UtilStrings.trimAll( request.getUri(), '/' );
+		if ( ScriptProfiler.isEnabled() && ( "wisp/profiler".equals( profilerUri ) || "wisp/profiler.json".equals( profilerUri ) ) )
+		{
+			session.requirePermission( "sys.profiler" );
+			processProfiler();
+			return;
+		}
+
+		if ( request.getUri().startsWith( AssetBundles.URI_PREFIX ) )
+		{
+			processAssetBundle();
+			return;
+		}
+
 		// Throws IOException and HttpError
 		fi = new WebInterpreter( request );
 
@@ -947,6 +1063,8 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 				throw new ScriptingException( ReportingLevel.E_ERROR, "Caught EventException while trying to fire the RenderEvent", ex.getCause() );
 		}
 
+		rendered = factory.spliceAsync( rendered );
+
 		log.log( Level.INFO, "Written {bytes=%s,total_timing=%sms}", rendered.readableBytes(), Timings.finish( this ) );
 
 		try
@@ -980,14 +1098,21 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 				sb.append( "<hr>\n" );
 				sb.append( "<small>Running <a href=\"https://github.com/ChioriGreene/ChioriWebServer\">" + Versioning.getProduct() + "</a> Version " + Versioning.getVersion() + " (Build #" + Versioning.getBuildNumber() + ")<br />" + Versioning.getCopyright() + "</small>" );
 
-				FullHttpResponse response = new DefaultFullHttpResponse( HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf( 503 ), Unpooled.wrappedBuffer( sb.toString().getBytes() ) );
-				ctx.write( response );
+				writeRaw( ctx, ( FullHttpRequest ) msg, new DefaultFullHttpResponse( HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf( 503 ), Unpooled.wrappedBuffer( sb.toString().getBytes() ) ) );
 
 				return;
 			}
 
-			requestFinished = false;
+			/*
+			 * Requests are decoded, aggregated and processed one at a time on the channel's event loop, so pipelined requests
+			 * queue in the decoder and their responses are written in the order received. The state of the previous request is released here.
+			 */
+			resetRequestState();
 			requestOrig = ( FullHttpRequest ) msg;
+
+			int maxRequests = AppConfig.get().getInt( "server.keepAliveMaxRequests", 100 );
+			requestCount++;
+			keepAlive = HttpHeaderUtil.isKeepAlive( requestOrig ) && ( maxRequests <= 0 || requestCount < maxRequests );
 			request = new HttpRequestWrapper( ctx.channel(), requestOrig, this, ssl, log );
 			response = request.getResponse();
 
@@ -1011,6 +1136,15 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 
 			Site currentSite = request.getLocation();
 
+			long retryAfter = RateLimiter.tryRequest( currentSite, RateLimiter.clientAddress( request ) );
+			if ( retryAfter > 0 )
+			{
+				response.setHeader( "Retry-After", retryAfter );
+				response.sendError( 429, "Too Many Requests" );
+				return;
+			}
+			rateLimitedSite = currentSite;
+
 			File tmpFileDirectory = currentSite != null ? currentSite.directoryTemp() : AppConfig.get().getDirectoryCache();
 
 			setTempDirectory( tmpFileDirectory );
@@ -1025,6 +1159,9 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 						WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse( ctx.channel() );
 					else
 						handshaker.handshake( ctx.channel(), requestOrig );
+
+					// WebSockets are long lived, so they don't hold a concurrent request slot
+					releaseRateLimit();
 				}
 				catch ( WebSocketHandshakeException e )
 				{
@@ -1106,7 +1243,8 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 	}
 
 	/**
-	 * Write a directory listing to the HTTP destination
+	 * Write a directory listing to the HTTP destination, streamed in chunks as HTML or as JSON if JSON was accepted.
+	 * The listing is paginated and sorted with the page, limit, sort (name, modified, size or type) and order (asc or desc) arguments.
 	 *
 	 * @throws HttpError   for HTTP errors
 	 * @throws IOException for universal Input/Output problems
@@ -1118,58 +1256,161 @@ public class HttpHandler extends SimpleChannelInboundHandler<Object>
 		if ( !dir.exists() || !dir.isDirectory() )
 			throw new HttpError( HttpResponseStatus.INTERNAL_SERVER_ERROR, "Directory does not exist!" );
 
-		response.setContentType( "text/html" );
+		// Only the known columns are accepted, as the value is echoed into the page links
+		String sort = request.getArgument( "sort", "name" ).toLowerCase();
+		if ( !DirectoryListing.SORTS.contains( sort ) )
+			sort = "name";
+		boolean descending = "desc".equalsIgnoreCase( request.getArgument( "order" ) );
+		// Both come from the query, so the limit is held to the configured page size and the page to the last page
+		int pageSize = Math.max( 1, AppConfig.get().getInt( "server.directoryListingPageSize", 500 ) );
+		int limit = Math.min( pageSize, Math.max( 1, request.hasArgument( "limit" ) ? request.getArgumentInt( "limit" ) : pageSize ) );
+
+		List<DirectoryListing.Entry> entries = DirectoryListing.sort( DirectoryListing.list( dir ), sort, descending );
+		int pages = Math.max( 1, ( entries.size() + limit - 1 ) / limit );
+		int page = Math.min( pages, Math.max( 1, request.hasArgument( "page" ) ? request.getArgumentInt( "page" ) : 1 ) );
+		entries = entries.subList( ( int ) Math.min( entries.size(), ( page - 1L ) * limit ), ( int ) Math.min( entries.size(), ( long ) page * limit ) );
+
+		String accept = request.getHeader( "Accept" );
 		response.setEncoding( Charsets.UTF_8 );
 
-		File[] files = dir.listFiles();
-		List<Object> tbl = Lists.newArrayList();
-		StringBuilder sb = new StringBuilder();
-		SimpleDateFormat sdf = new SimpleDateFormat( "dd-MMM-yyyy HH:mm:ss" );
+		if ( accept != null && accept.contains( "application/json" ) )
+		{
+			Map<String, Object> json = new LinkedHashMap<>();
+			json.put( "page", page );
+			json.put( "pages", pages );
+			json.put( "entries", entries.stream().map( DirectoryListing.Entry::toMap ).collect( Collectors.toList() ) );
+
+			response.setContentType( "application/json" );
+			response.print( new GsonBuilder().create().toJson( json ) );
+			response.sendResponse();
+			return;
+		}
 
-		sb.append( "<style>.altrowstable { border-spacing: 12px; }</style>" );
-		sb.append( "<h1>Index of " + request.getUri() + "</h1>" );
+		String uri = request.getUri().contains( "?" ) ? request.getUri().substring( 0, request.getUri().indexOf( "?" ) ) : request.getUri();
+		while ( uri.endsWith( "/" ) )
+			uri = uri.substring( 0, uri.length() - 1 );
+		String href = encodePath( uri );
+		String query = "?sort=" + sort + "&order=" + ( descending ? "desc" : "asc" ) + "&limit=" + limit + "&page=";
 
-		for ( File f : files )
+		response.setContentType( "text/html" );
+		response.sendChunkedHeaders();
+
+		StringBuilder sb = new StringBuilder();
+		sb.append( "<style>.altrowstable { border-spacing: 12px; }</style>" );
+		sb.append( "<h1>Index of " ).append( UtilStrings.escapeHtml( uri + "/" ) ).append( "</h1>" );
+		sb.append( "<table class=\"altrowstable\">\n<thead>\n<tr>\n<th></th>\n" );
+		for ( String[] col : new String[][] {{"Name", "name"}, {"Last Modified", "modified"}, {"Size", "size"}, {"Type", "type"}} )
+			sb.append( "<th><a href=\"" ).append( href ).append( "/?sort=" ).append( col[1] ).append( "&order=" ).append( col[1].equalsIgnoreCase( sort ) && !descending ? "desc" : "asc" ).append( "\">" ).append( col[0] ).append( "</a></th>\n" );
+		sb.append( "</tr>\n</thead>\n<tbody>\n" );
+
+		int rowInx = 0;
+		for ( DirectoryListing.Entry entry : entries )
 		{
-			List<String> l = Lists.newArrayList();
-			String type = ContentTypes.getContentType( f );
-			String mainType = type.contains( "/" ) ? type.substring( 0, type.indexOf( "/" ) ) : type;
+			String name = UtilStrings.escapeHtml( entry.name );
 
-			l.add( "<img src=\"/wisp/icons/" + mainType + "\" />" );
-			l.add( "<a href=\"" + request.getUri() + "/" + f.getName() + "\">" + f.getName() + "</a>" );
-			l.add( sdf.format( f.lastModified() ) );
+			sb.append( "<tr class=\"" ).append( rowInx % 2 == 0 ? "evenrowcolor" : "oddrowcolor" ).append( "\">\n" );
+			sb.append( "<td id=\"col_0\"><img src=\"/wisp/icons/" ).append( encodePath( entry.mainType() ) ).append( "\" /></td>\n" );
+			sb.append( "<td id=\"col_1\"><a href=\"" ).append( href ).append( "/" ).append( encodePath( entry.name ) ).append( "\">" ).append( name ).append( "</a></td>\n" );
+			sb.append( "<td id=\"col_2\">" ).append( entry.lastModifiedString() ).append( "</td>\n" );
+			sb.append( "<td id=\"col_3\">" ).append( entry.directory ? "-" : ( entry.size + 1023 ) / 1024 + "kb" ).append( "</td>\n" );
+			sb.append( "<td id=\"col_4\">" ).append( UtilStrings.escapeHtml( entry.contentType ) ).append( "</td>\n" );
+			sb.append( "</tr>\n" );
 
-			if ( f.isDirectory() )
-				l.add( "-" );
-			else
+			if ( ++rowInx % 100 == 0 )
 			{
-				InputStream stream = null;
-				try
-				{
-					URL url = f.toURI().toURL();
-					stream = url.openStream();
-					l.add( String.valueOf( stream.available() ) + "kb" );
-				}
-				finally
-				{
-					if ( stream != null )
-						stream.close();
-				}
+				response.sendChunk( Unpooled.copiedBuffer( sb, Charsets.UTF_8 ) );
+				sb.setLength( 0 );
 			}
+		}
 
-			l.add( type );
+		sb.append( "</tbody>\n</table>\n" );
 
-			tbl.add( l );
+		if ( pages > 1 )
+		{
+			sb.append( "<p>" );
+			if ( page > 1 )
+				sb.append( "<a href=\"" ).append( href ).append( "/" ).append( query ).append( page - 1 ).append( "\">&laquo; Previous</a> " );
+			sb.append( "Page " ).append( page ).append( " of " ).append( pages );
+			if ( page < pages )
+				sb.append( " <a href=\"" ).append( href ).append( "/" ).append( query ).append( page + 1 ).append( "\">Next &raquo;</a>" );
+			sb.append( "</p>" );
 		}
 
-		sb.append( Builtin.createTable( tbl, Arrays.asList( "", "Name", "Last Modified", "Size", "Type" ) ) );
 		sb.append( "<hr>" );
 		sb.append( "<small>Running <a href=\"https://github.com/ChioriGreene/ChioriWebServer\">" + Versioning.getProduct() + "</a> Version " + Versioning.getVersion() + "<br />" + Versioning.getCopyright() + "</small>" );
 
-		response.print( sb.toString() );
+		response.sendChunk( Unpooled.copiedBuffer( sb, Charsets.UTF_8 ) );
+		response.finishChunked();
+	}
+
+	/**
+	 * URL encodes each segment of the path and escapes the result, so it's safe within a HTML attribute
+	 */
+	private static String encodePath( String path )
+	{
+		String[] segments = path.split( "/", -1 );
+		StringBuilder sb = new StringBuilder();
+		for ( int i = 0; i < segments.length; i++ )
+		{
+			if ( i > 0 )
+				sb.append( "/" );
+			try
+			{
+				sb.append( URLEncoder.encode( segments[i], Charsets.UTF_8.name() ).replace( "+", "%20" ) );
+			}
+			catch ( UnsupportedEncodingException e )
+			{
+				throw new Error( e );
+			}
+		}
+		return UtilStrings.escapeHtml( sb.toString() );
+	}
+
+	/**
+	 * Write the {@link ScriptProfiler} statistics to the HTTP destination, as JSON if the uri ends with .json or JSON was accepted
+	 *
+	 * @throws IOException for universal Input/Output problems
+	 */
+	public void processProfiler() throws IOException
+	{
+		String accept = request.getHeader( "Accept" );
+		boolean json = request.getUri().endsWith( ".json" ) || accept != null && accept.contains( "application/json" );
+
+		response.setEncoding( Charsets.UTF_8 );
+
+		if ( json )
+		{
+			response.setContentType( "application/json" );
+			response.print( ScriptProfiler.toJson() );
+		}
+		else
+		{
+			response.setContentType( "text/html" );
+			response.print( ScriptProfiler.toHtml() );
+		}
+
 		response.sendResponse();
+	}
 
-		// throw new HttpErrorException( 403, "Sorry, Directory Listing has not been implemented on this Server!" );
+	/**
+	 * Write a built {@link AssetBundles} file to the HTTP destination, the file name is fingerprinted so it may be cached forever
+	 *
+	 * @throws HttpError   if the file is not the current build of a bundle
+	 * @throws IOException for universal Input/Output problems
+	 */
+	public void processAssetBundle() throws HttpError, IOException
+	{
+		Site site = request.getLocation();
+		File file = site == null ? null : site.getAssetBundles().file( request.getUri().substring( AssetBundles.URI_PREFIX.length() ) );
+
+		if ( file == null )
+			throw new HttpError( HttpResponseStatus.NOT_FOUND );
+
+		response.setContentType( ContentTypes.getContentType( file ) );
+		response.setEncoding( Charsets.UTF_8 );
+		response.setHeader( "Cache-Control", "public, max-age=31536000, immutable" );
+		response.write( Files.readAllBytes( file.toPath() ) );
+		response.sendResponse();
 	}
 
 	private void readHttpDataChunkByChunk() throws IOException
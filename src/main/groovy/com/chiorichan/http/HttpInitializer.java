@@ -16,21 +16,40 @@ import io.netty.handler.codec.http.HttpContentCompressor;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.timeout.IdleStateHandler;
 
 import java.lang.ref.WeakReference;
 import java.util.List;
 
+import com.chiorichan.AppConfig;
 import com.google.common.collect.Lists;
 
 public class HttpInitializer extends ChannelInitializer<SocketChannel>
 {
 	public static final List<WeakReference<SocketChannel>> activeChannels = Lists.newCopyOnWriteArrayList();
 
+	/**
+	 * @return The handler that closes idle keep-alive connections, null if disabled by setting server.keepAliveTimeout to zero
+	 */
+	public static IdleStateHandler newIdleStateHandler()
+	{
+		int timeout = AppConfig.get().getInt( "server.keepAliveTimeout", 60 );
+		return timeout > 0 ? new IdleStateHandler( 0, 0, timeout ) : null;
+	}
+
 	@Override
 	protected void initChannel( SocketChannel ch ) throws Exception
 	{
 		ChannelPipeline p = ch.pipeline();
 
+		RateLimitHandler limiter = RateLimitHandler.get();
+		if ( limiter != null )
+			p.addLast( "limiter", limiter );
+
+		IdleStateHandler idle = newIdleStateHandler();
+		if ( idle != null )
+			p.addLast( "idle", idle );
+
 		p.addLast( "decoder", new HttpRequestDecoder() );
 		p.addLast( "aggregator", new HttpObjectAggregator( 104857600 ) ); // One Hundred Megabytes
 		p.addLast( "encoder", new HttpResponseEncoder() );
@@ -18,6 +18,8 @@ import com.chiorichan.account.auth.AccountAuthenticator;
 import com.chiorichan.account.lang.AccountDescriptiveReason;
 import com.chiorichan.account.lang.AccountException;
 import com.chiorichan.account.lang.AccountResult;
+import com.chiorichan.factory.ScriptingFactory;
+import com.chiorichan.http.ssl.ProtocolNegotiator;
 import com.chiorichan.lang.EnumColor;
 import com.chiorichan.lang.HttpError;
 import com.chiorichan.logger.experimental.LogEvent;
@@ -88,6 +90,39 @@ public class HttpRequestWrapper extends SessionWrapper implements SessionContext
 		references.put( Thread.currentThread(), new WeakReference<>( request ) );
 	}
 
+	/**
+	 * The factory scripts reach through the request while the current thread evaluates on the request's behalf
+	 */
+	private static final ThreadLocal<ScriptingFactory> lentFactory = new ThreadLocal<>();
+
+	/**
+	 * Links the request to the current thread while it evaluates on the request's behalf, e.g., an async include.
+	 * Scripts reaching for the request's factory get the provided one instead, so they never write into the request output from another thread.
+	 * Must be followed by {@link #unlend()} once done.
+	 *
+	 * @param request The request
+	 * @param factory The factory evaluating on the current thread
+	 */
+	public static void lend( HttpRequestWrapper request, ScriptingFactory factory )
+	{
+		putRequest( request );
+		lentFactory.set( factory );
+	}
+
+	public static void unlend()
+	{
+		references.remove( Thread.currentThread() );
+		lentFactory.remove();
+	}
+
+	@Override
+	public ScriptingFactory getScriptingFactory()
+	{
+		ScriptingFactory factory = lentFactory.get();
+		WeakReference<HttpRequestWrapper> lent = factory == null ? null : references.get( Thread.currentThread() );
+		return lent != null && lent.get() == this ? factory : super.getScriptingFactory();
+	}
+
 	/**
 	 * The original Netty Channel
 	 */
@@ -852,6 +887,22 @@ public class HttpRequestWrapper extends SessionWrapper implements SessionContext
 		return http.headers().contains( "CF-Connecting-IP" );
 	}
 
+	/**
+	 * @return Was this request received on a HTTP/2 stream and adapted by the {@link ProtocolNegotiator}
+	 */
+	public boolean isHttp2()
+	{
+		return ProtocolNegotiator.isHttp2( channel );
+	}
+
+	/**
+	 * @return Should the connection stay open after this response, HTTP/2 connections are always kept open
+	 */
+	public boolean isKeepAlive()
+	{
+		return isHttp2() || handler.isKeepAlive();
+	}
+
 	public boolean isSecure()
 	{
 		// TODO Is this reliable or should we respond based on the ssl param?
@@ -1062,6 +1113,7 @@ public class HttpRequestWrapper extends SessionWrapper implements SessionContext
 
 			if ( result.isSuccess() )
 			{
+				session.saveWithoutException( true );
 				getResponse().sendLoginPage( result.getMessage() );
 				return true;
 			}
@@ -16,6 +16,7 @@ import com.chiorichan.event.http.HttpErrorEvent;
 import com.chiorichan.event.http.HttpExceptionEvent;
 import com.chiorichan.factory.ScriptingContext;
 import com.chiorichan.factory.api.Builtin;
+import com.chiorichan.http.ssl.ProtocolNegotiator;
 import com.chiorichan.lang.EnumColor;
 import com.chiorichan.lang.HttpError;
 import com.chiorichan.logger.experimental.LogEvent;
@@ -33,6 +34,7 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelProgressiveFuture;
 import io.netty.channel.ChannelProgressiveFutureListener;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
@@ -73,6 +75,7 @@ public class HttpResponseWrapper
 	final Map<String, String> annotations = Maps.newHashMap();
 	final HttpRequestWrapper request;
 	HttpResponseStage stage = HttpResponseStage.READING;
+	boolean chunked = false;
 
 	protected HttpResponseWrapper( HttpRequestWrapper request, LogEvent log )
 	{
@@ -650,24 +653,136 @@ public class HttpResponseWrapper
 		if ( stage == HttpResponseStage.CLOSED || stage == HttpResponseStage.WRITTEN )
 			return;
 
+		if ( chunked )
+		{
+			chunked = false;
+
+			// An error cut the chunked response short, the status is already sent so the stream is ended and the connection closed to signal it's incomplete
+			if ( !request.isHttp2() )
+			{
+				stage = HttpResponseStage.WRITTEN;
+				request.getChannel().writeAndFlush( LastHttpContent.EMPTY_LAST_CONTENT ).addListener( ChannelFutureListener.CLOSE );
+				return;
+			}
+
+			// HTTP/2 chunks are only buffered, so the response is sent in full as usual
+		}
+
 		FullHttpResponse response = new DefaultFullHttpResponse( HttpVersion.HTTP_1_1, httpStatus, output );
 		HttpHeaders h = response.headers();
 
+		applyHeaders( h );
+		h.setInt( HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes() );
+
+		stage = HttpResponseStage.WRITTEN;
+
+		ChannelFuture future = request.getChannel().writeAndFlush( response );
+		if ( !isKeepAlive() )
+			future.addListener( ChannelFutureListener.CLOSE );
+	}
+
+	/**
+	 * A HTTP/1.0 client does not understand chunked transfer encoding, so a chunked response is ended by closing the connection instead
+	 *
+	 * @return Should the connection stay open after this response
+	 */
+	private boolean isKeepAlive()
+	{
+		return request.isKeepAlive() && !( chunked && request.getHttpVersion() == HttpVersion.HTTP_1_0 );
+	}
+
+	/**
+	 * Sends the status and headers using chunked transfer encoding, the content is then streamed with {@link #sendChunk(ByteBuf)} and ended with {@link #finishChunked()}
+	 *
+	 * @throws IOException if there was a problem sending the data, like the connection was unexpectedly closed.
+	 */
+	public void sendChunkedHeaders() throws IOException
+	{
+		if ( stage == HttpResponseStage.CLOSED || stage == HttpResponseStage.WRITTEN || chunked )
+			throw new IllegalStateException( "You can't start a chunked response because the response was already sent." );
+
+		chunked = true;
+
+		// HTTP/2 streams are adapted from full responses, so the chunks are buffered and sent at once
+		if ( request.isHttp2() )
+			return;
+
+		HttpResponse response = new DefaultHttpResponse( HttpVersion.HTTP_1_1, httpStatus );
+		HttpHeaders h = response.headers();
+
+		applyHeaders( h );
+		if ( request.getHttpVersion() != HttpVersion.HTTP_1_0 )
+			h.set( HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED );
+
+		request.getChannel().write( response );
+	}
+
+	/**
+	 * Sends a chunk of content, only valid after {@link #sendChunkedHeaders()}
+	 *
+	 * @param buf The content
+	 */
+	public void sendChunk( ByteBuf buf )
+	{
+		if ( !chunked )
+			throw new IllegalStateException( "You must call sendChunkedHeaders() before sending chunks." );
+
+		if ( request.isHttp2() )
+			output.writeBytes( buf );
+		else if ( buf.isReadable() )
+			request.getChannel().writeAndFlush( new DefaultHttpContent( buf ) );
+	}
+
+	/**
+	 * Ends the chunked response started by {@link #sendChunkedHeaders()}
+	 */
+	public void finishChunked() throws IOException
+	{
+		if ( !chunked )
+			throw new IllegalStateException( "You must call sendChunkedHeaders() before finishing the chunked response." );
+
+		boolean keepAlive = isKeepAlive();
+		chunked = false;
+
+		if ( request.isHttp2() )
+		{
+			sendResponse();
+			return;
+		}
+
+		stage = HttpResponseStage.WRITTEN;
+		ChannelFuture future = request.getChannel().writeAndFlush( LastHttpContent.EMPTY_LAST_CONTENT );
+		if ( !keepAlive )
+			future.addListener( ChannelFutureListener.CLOSE );
+	}
+
+	private void applyHeaders( HttpHeaders h )
+	{
 		if ( request.hasSession() )
 		{
 			Session session = request.getSession();
 
+			// Anonymous sessions of sites with client side sessions enabled are sealed into a cookie instead of the datastore
+			HttpCookie sealed = session.processClientSideCookie( request.getRootDomain() );
+			if ( sealed != null )
+				h.add( HttpHeaderNames.SET_COOKIE, sealed.toHeaderValue() );
+
+			// A transient session has not been used, so no cookie is issued for it
+			boolean serverSide = !session.isTransient() && !session.isClientSide();
+
 			/**
 			 * Initiate the Session Persistence Method.
 			 * This is usually done with a cookie but we should make a param optional
 			 */
-			session.processSessionCookie( request.getRootDomain() );
+			if ( serverSide )
+				session.processSessionCookie( request.getRootDomain() );
 
-			for ( HttpCookie c : session.getCookies().values() )
-				if ( c.needsUpdating() )
-					h.add( HttpHeaderNames.SET_COOKIE, c.toHeaderValue() );
+			if ( serverSide || session.isClientSide() )
+				for ( HttpCookie c : session.getCookies().values() )
+					if ( c.needsUpdating() )
+						h.add( HttpHeaderNames.SET_COOKIE, c.toHeaderValue() );
 
-			if ( session.getSessionCookie().needsUpdating() )
+			if ( serverSide && session.getSessionCookie().needsUpdating() )
 				h.add( HttpHeaderNames.SET_COOKIE, session.getSessionCookie().toHeaderValue() );
 		}
 
@@ -677,9 +792,12 @@ public class HttpResponseWrapper
 		 * We apologize that there is currently no way to disable this behavior.
 		 */
 
-		h.set( HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE );
+		// Connection specific headers are not allowed on HTTP/2, instead the response is sent on the stream of the request
+		if ( request.isHttp2() )
+			h.set( ProtocolNegotiator.HTTP2_STREAM_ID, request.getHeader( ProtocolNegotiator.HTTP2_STREAM_ID ) );
+		else
+			h.set( HttpHeaderNames.CONNECTION, isKeepAlive() ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE );
 		h.add( HttpHeaderNames.SERVER, Versioning.getProduct() + " Version " + Versioning.getVersion() );
-		h.setInt( HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes() );
 
 		// This might be a temporary measure - TODO Properly set the charset for each request.
 		h.set( HttpHeaderNames.CONTENT_TYPE, httpContentType + "; charset=" + encoding.name() );
@@ -694,10 +812,6 @@ public class HttpResponseWrapper
 
 		// h.set( HttpHeaderNames.EXPIRES, formatter.print( DateTime.now( DateTimeZone.UTC ).plusDays( 1 ) ) );
 		// h.set( HttpHeaderNames.CACHE_CONTROL, "public, max-age=86400" );
-
-		stage = HttpResponseStage.WRITTEN;
-
-		request.getChannel().writeAndFlush( response );
 	}
 
 	public void setAnnotation( String key, String val )
@@ -0,0 +1,75 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.http;
+
+import com.chiorichan.AppConfig;
+import com.chiorichan.net.NetworkManager;
+import com.chiorichan.net.RateLimiter;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Enforces the concurrent connection caps of the {@link RateLimiter}, connections over the cap are closed before anything is read.
+ * Shared by every channel, the IP holding the slot is kept as a channel attribute so it's released when the channel closes.
+ */
+@Sharable
+public class RateLimitHandler extends ChannelHandlerAdapter
+{
+	public static final RateLimitHandler INSTANCE = new RateLimitHandler();
+
+	private static final AttributeKey<String> CONNECTION_IP = AttributeKey.valueOf( "rateLimitIp" );
+
+	/**
+	 * @return The shared handler, null if disabled by setting server.rateLimit.enabled to false
+	 */
+	public static RateLimitHandler get()
+	{
+		return AppConfig.get().getBoolean( "server.rateLimit.enabled", true ) ? INSTANCE : null;
+	}
+
+	private RateLimitHandler()
+	{
+
+	}
+
+	@Override
+	public void channelActive( ChannelHandlerContext ctx ) throws Exception
+	{
+		if ( ctx.channel().remoteAddress() instanceof InetSocketAddress )
+		{
+			String ip = ( ( InetSocketAddress ) ctx.channel().remoteAddress() ).getAddress().getHostAddress();
+
+			if ( !RateLimiter.tryConnect( ip ) )
+			{
+				NetworkManager.getLogger().finest( "Refused connection from " + ip + ", it has too many open connections" );
+				ctx.close();
+				return;
+			}
+
+			ctx.channel().attr( CONNECTION_IP ).set( ip );
+		}
+
+		ctx.fireChannelActive();
+	}
+
+	@Override
+	public void channelInactive( ChannelHandlerContext ctx ) throws Exception
+	{
+		String ip = ctx.channel().attr( CONNECTION_IP ).getAndRemove();
+		if ( ip != null )
+			RateLimiter.releaseConnection( ip );
+
+		ctx.fireChannelInactive();
+	}
+}
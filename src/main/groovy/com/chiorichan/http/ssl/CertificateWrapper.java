@@ -13,6 +13,7 @@ import com.chiorichan.utils.UtilIO;
 import com.chiorichan.utils.UtilObjects;
 import com.chiorichan.net.NetworkManager;
 import com.chiorichan.utils.UtilEncryption;
+import io.netty.handler.ssl.IdentityCipherSuiteFilter;
 import io.netty.handler.ssl.SslContext;
 import org.bouncycastle.asn1.x500.RDN;
 import org.bouncycastle.asn1.x500.X500Name;
@@ -108,7 +109,21 @@ public class CertificateWrapper
 	{
 		if ( context == null )
 		{
-			if ( sslSecret == null || sslSecret.isEmpty() )
+			if ( ProtocolNegotiator.isHttp2Enabled() && !ProtocolNegotiator.isAlpnAvailable() )
+				NetworkManager.getLogger().warning( "HTTP/2 is enabled but ALPN is not available, it requires OpenSSL or alpn-boot on the bootclasspath. HTTP/2 will be disabled." );
+			else if ( ProtocolNegotiator.isHttp2Enabled() )
+				try
+				{
+					context = SslContext.newServerContext( null, sslCertFile.getAbsoluteFile(), sslKeyFile.getAbsoluteFile(), sslSecret == null || sslSecret.isEmpty() ? null : sslSecret, null, IdentityCipherSuiteFilter.INSTANCE, ProtocolNegotiator.protocolConfig(), 0, 0 );
+				}
+				catch ( SSLException | UnsupportedOperationException | IllegalStateException | LinkageError e )
+				{
+					NetworkManager.getLogger().warning( "ALPN is not available from the SSL provider, HTTP/2 will be disabled for this certificate: " + e.getMessage() );
+				}
+
+			if ( context != null )
+				NetworkManager.getLogger().fine( "The SslContext will advertise HTTP/2 using ALPN" );
+			else if ( sslSecret == null || sslSecret.isEmpty() )
 				context = SslContext.newServerContext( sslCertFile.getAbsoluteFile(), sslKeyFile.getAbsoluteFile() );
 			else
 				context = SslContext.newServerContext( sslCertFile.getAbsoluteFile(), sslKeyFile.getAbsoluteFile(), sslSecret );
@@ -0,0 +1,210 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.http.ssl;
+
+import com.chiorichan.AppConfig;
+import com.chiorichan.http.HttpHandler;
+import com.chiorichan.http.HttpInitializer;
+import com.chiorichan.net.NetworkManager;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
+import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapter;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+
+import javax.net.ssl.SSLEngine;
+import java.lang.reflect.Method;
+
+/**
+ * Installs the HTTP codec once the SSL handshake has completed, HTTP/2 when the client negotiated {@code h2} using ALPN, otherwise HTTP/1.1.
+ * HTTP/2 streams are adapted to full HTTP/1.1 requests and responses, so they are processed by the same {@link HttpHandler}.
+ */
+public class ProtocolNegotiator extends ChannelHandlerAdapter
+{
+	/**
+	 * The header that carries the HTTP/2 stream id on adapted requests, it is copied to the response so it's sent on the same stream
+	 */
+	public static final String HTTP2_STREAM_ID = "x-http2-stream-id";
+
+	/**
+	 * Set on channels that negotiated HTTP/2, the stream id header alone can't be trusted as a HTTP/1.1 client may send it
+	 */
+	private static final AttributeKey<Boolean> HTTP2 = AttributeKey.valueOf( "http2" );
+
+	private static final boolean alpnAvailable = detectAlpn();
+
+	public static boolean isHttp2Enabled()
+	{
+		return AppConfig.get().getBoolean( "server.http2.enabled", false );
+	}
+
+	/**
+	 * @return Was HTTP/2 negotiated on the channel
+	 */
+	public static boolean isHttp2( Channel channel )
+	{
+		return Boolean.TRUE.equals( channel.attr( HTTP2 ).get() );
+	}
+
+	/**
+	 * @return Can the SSL provider negotiate ALPN, either OpenSSL or the JDK engine with alpn-boot on the bootclasspath
+	 */
+	public static boolean isAlpnAvailable()
+	{
+		return alpnAvailable;
+	}
+
+	private static boolean detectAlpn()
+	{
+		try
+		{
+			if ( OpenSsl.isAvailable() )
+				return true;
+		}
+		catch ( LinkageError e )
+		{
+			// Not available
+		}
+
+		try
+		{
+			Class.forName( "org.eclipse.jetty.alpn.ALPN", true, null );
+			return true;
+		}
+		catch ( ClassNotFoundException | LinkageError e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @return The ALPN configuration advertising HTTP/2 ahead of HTTP/1.1
+	 */
+	public static ApplicationProtocolConfig protocolConfig()
+	{
+		return new ApplicationProtocolConfig( Protocol.ALPN, SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT, "h2", "http/1.1" );
+	}
+
+	/**
+	 * Both the Netty ALPN engine wrappers and newer JDK engines expose the negotiated protocol as getApplicationProtocol()
+	 */
+	private static String applicationProtocol( SSLEngine engine )
+	{
+		try
+		{
+			Method method = engine.getClass().getMethod( "getApplicationProtocol" );
+			return ( String ) method.invoke( engine );
+		}
+		catch ( ReflectiveOperationException e )
+		{
+			return null;
+		}
+	}
+
+	private boolean configured = false;
+
+	/**
+	 * @return The name of the handler the protocol handlers are added after
+	 */
+	private String addIdleStateHandler( ChannelHandlerContext ctx )
+	{
+		IdleStateHandler idle = HttpInitializer.newIdleStateHandler();
+		if ( idle == null )
+			return ctx.name();
+
+		ctx.pipeline().addAfter( ctx.name(), "idle", idle );
+		return "idle";
+	}
+
+	private void configureHttp1( ChannelHandlerContext ctx )
+	{
+		ChannelPipeline p = ctx.pipeline();
+
+		p.addAfter( addIdleStateHandler( ctx ), "decoder", new HttpRequestDecoder() );
+		p.addAfter( "decoder", "aggregator", new HttpObjectAggregator( Integer.MAX_VALUE ) );
+		p.addAfter( "aggregator", "encoder", new HttpResponseEncoder() );
+		p.addAfter( "encoder", "deflater", new HttpContentCompressor() );
+		p.addAfter( "deflater", "handler", new HttpHandler( true ) );
+
+		configured = true;
+	}
+
+	private void configureHttp2( ChannelHandlerContext ctx ) throws Exception
+	{
+		DefaultHttp2Connection connection = new DefaultHttp2Connection( true );
+		InboundHttp2ToHttpAdapter listener = new InboundHttp2ToHttpAdapter.Builder( connection ).maxContentLength( AppConfig.get().getInt( "server.http2.maxContentLength", 104857600 ) ).propagateSettings( false ).build();
+		HttpToHttp2ConnectionHandler http2 = new HttpToHttp2ConnectionHandler( true, listener );
+
+		Http2Settings settings = new Http2Settings();
+		settings.maxConcurrentStreams( AppConfig.get().getInt( "server.http2.maxConcurrentStreams", 100 ) );
+		settings.initialWindowSize( AppConfig.get().getInt( "server.http2.initialWindowSize", 65535 ) );
+		http2.decoder().localSettings( settings );
+
+		ChannelPipeline p = ctx.pipeline();
+
+		ctx.channel().attr( HTTP2 ).set( true );
+
+		p.addAfter( addIdleStateHandler( ctx ), "http2", http2 );
+		p.addAfter( "http2", "handler", new HttpHandler( true ) );
+
+		configured = true;
+	}
+
+	@Override
+	public void channelRead( ChannelHandlerContext ctx, Object msg ) throws Exception
+	{
+		// Data before a completed handshake means the connection is not using SSL, so fallback to HTTP/1.1
+		if ( !configured )
+			configureHttp1( ctx );
+
+		ctx.fireChannelRead( msg );
+		ctx.pipeline().remove( this );
+	}
+
+	@Override
+	public void userEventTriggered( ChannelHandlerContext ctx, Object evt ) throws Exception
+	{
+		if ( !configured && evt instanceof SslHandshakeCompletionEvent && ( ( SslHandshakeCompletionEvent ) evt ).isSuccess() )
+		{
+			SslHandler ssl = ctx.pipeline().get( SslHandler.class );
+			String protocol = ssl == null ? null : applicationProtocol( ssl.engine() );
+
+			if ( isHttp2Enabled() && "h2".equals( protocol ) )
+			{
+				NetworkManager.getLogger().fine( "Negotiated HTTP/2 with " + ctx.channel().remoteAddress() );
+				configureHttp2( ctx );
+			}
+			else
+				configureHttp1( ctx );
+
+			ctx.fireUserEventTriggered( evt );
+			ctx.pipeline().remove( this );
+			return;
+		}
+
+		ctx.fireUserEventTriggered( evt );
+	}
+}
@@ -12,15 +12,11 @@ package com.chiorichan.http.ssl;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.http.HttpContentCompressor;
-import io.netty.handler.codec.http.HttpObjectAggregator;
-import io.netty.handler.codec.http.HttpRequestDecoder;
-import io.netty.handler.codec.http.HttpResponseEncoder;
 
 import java.lang.ref.WeakReference;
 import java.util.List;
 
-import com.chiorichan.http.HttpHandler;
+import com.chiorichan.http.RateLimitHandler;
 import com.chiorichan.net.NetworkManager;
 import com.google.common.collect.Lists;
 
@@ -33,6 +29,10 @@ public class SslInitializer extends ChannelInitializer<SocketChannel>
 	{
 		ChannelPipeline p = ch.pipeline();
 
+		RateLimitHandler limiter = RateLimitHandler.get();
+		if ( limiter != null )
+			p.addLast( "limiter", limiter );
+
 		try
 		{
 			p.addLast( new SniNegotiator() );
@@ -43,11 +43,8 @@ public class SslInitializer extends ChannelInitializer<SocketChannel>
 			throw new IllegalStateException( "The SSL engine failed to initialize", e );
 		}
 
-		p.addLast( "decoder", new HttpRequestDecoder() );
-		p.addLast( "aggregator", new HttpObjectAggregator( Integer.MAX_VALUE ) );
-		p.addLast( "encoder", new HttpResponseEncoder() );
-		p.addLast( "deflater", new HttpContentCompressor() );
-		p.addLast( "handler", new HttpHandler( true ) );
+		// Installs the HTTP/2 or HTTP/1.1 codec once ALPN has completed
+		p.addLast( "negotiator", new ProtocolNegotiator() );
 
 		activeChannels.add( new WeakReference<>( ch ) );
 	}
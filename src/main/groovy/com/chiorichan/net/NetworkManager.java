@@ -426,6 +426,8 @@ public class NetworkManager implements TaskRegistrar, LogSource
 				if ( ref.get() == null )
 					SslInitializer.activeChannels.remove( ref );
 		} );
+
+		TaskManager.instance().scheduleAsyncRepeatingTask( this, Ticks.MINUTE, Ticks.MINUTE, RateLimiter::sweep );
 	}
 
 	@Override
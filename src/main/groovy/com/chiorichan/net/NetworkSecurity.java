@@ -25,16 +25,28 @@ import com.chiorichan.tasks.TaskRegistrar;
 import com.chiorichan.tasks.Timings;
 import com.chiorichan.utils.UtilHttp;
 import com.chiorichan.utils.UtilIO;
-import com.chiorichan.utils.UtilLists;
+import com.google.common.net.InetAddresses;
 import org.apache.commons.lang3.Validate;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -54,7 +66,7 @@ public class NetworkSecurity implements EventRegistrar, TaskRegistrar, Listener
 		public final int countToBan;
 
 		/**
-		 * Indicates the maximum amount of time between strikes to count to a ban
+		 * Indicates the window in seconds strikes are counted over, older strikes decay
 		 */
 		public final int dropOffTime;
 
@@ -103,167 +115,402 @@ public class NetworkSecurity implements EventRegistrar, TaskRegistrar, Listener
 		}
 	}
 
-	@SuppressWarnings( "unused" )
-	private static class IpTracker
+	/**
+	 * Strike counter for a single {@link IpStrikeType}, the count is decayed over a sliding window of {@link IpStrikeType#dropOffTime} seconds.
+	 * The window is approximated from the counts of the current and previous fixed windows, packed into a single atomic long.
+	 */
+	private static class Strikes
+	{
+		/**
+		 * window index << 32 | previous window count << 16 | current window count
+		 */
+		private final AtomicLong state = new AtomicLong();
+
+		/**
+		 * @return The strikes within the window, including this one
+		 */
+		int add( int window, long now )
+		{
+			long index = now / window;
+			for ( ; ; )
+			{
+				long prev = state.get();
+				long prevIndex = prev >>> 32;
+				int previous = 0;
+				int current = 0;
+
+				if ( prevIndex == index )
+				{
+					previous = ( int ) ( prev >>> 16 & 0xFFFF );
+					current = ( int ) ( prev & 0xFFFF );
+				}
+				else if ( prevIndex == index - 1 )
+					previous = ( int ) ( prev & 0xFFFF );
+
+				current = Math.min( current + 1, 0xFFFF );
+
+				if ( state.compareAndSet( prev, index << 32 | ( long ) previous << 16 | current ) )
+					return current + ( int ) ( previous * ( 1d - ( now % window ) / ( double ) window ) );
+			}
+		}
+	}
+
+	private static class Ban
 	{
-		static class Record
+		final String reason;
+		final long till;
+		final long when;
+
+		/**
+		 * @param till The epoch the ban is lifted, -1 for never
+		 */
+		Ban( String reason, long when, long till )
 		{
-			int count = 0;
-			long time = 0;
+			this.reason = reason;
+			this.when = when;
+			this.till = till;
 		}
 
-		private boolean banned = false;
-		private String banReason = null;
-		private long banTill = -1L;
-		private long banWhen = -1L;
+		boolean isActive( long now )
+		{
+			return till < 0 || till > now;
+		}
+
+		/**
+		 * @return The ban log line for this ban, see {@link NetworkSecurity#replay(String)}
+		 */
+		String toLine( String target )
+		{
+			return "ban\t" + target + "\t" + when + "\t" + till + "\t" + reason.replaceAll( "[\\t\\r\\n]", " " );
+		}
+	}
+
+	private static class IpTracker
+	{
 		private final String ipAddress;
-		private final Map<IpStrikeType, Record> strikes = new ConcurrentHashMap<>();
+		private final Map<IpStrikeType, Strikes> strikes = new ConcurrentHashMap<>();
+		private volatile Ban ban = null;
+		private volatile long lastSeen = Timings.epoch();
 
 		IpTracker( String ipAddress )
 		{
-			if ( !UtilHttp.isValidIPv4( ipAddress ) && !UtilHttp.isValidIPv6( ipAddress ) )
-				throw new IllegalArgumentException( "The provided IP '" + ipAddress + "' is not a valid IPv4 or IPv6 address." );
-
 			this.ipAddress = ipAddress;
 		}
 
 		void addStrike( IpStrikeType type, String... args )
 		{
-			// If already banned there is no need to track reasons to ban
-			if ( banned )
-				return;
-
 			Validate.notNull( type );
 			Validate.notNull( args );
 
-			Record r = strikes.containsKey( type ) ? strikes.get( type ) : new Record();
+			long now = Timings.epoch();
+			lastSeen = now;
 
-			if ( Timings.epoch() - r.time > type.dropOffTime )
-				r.count = 1;
-			else
-				r.count++;
+			// If already banned there is no need to track reasons to ban
+			if ( isBanned( now ) )
+				return;
 
-			if ( r.count >= type.countToBan )
+			if ( strikes.computeIfAbsent( type, t -> new Strikes() ).add( type.dropOffTime, now ) >= type.countToBan )
 			{
-				NetworkManager.getLogger().info( EnumColor.RED + "" + EnumColor.NEGATIVE + "The IP '" + ipAddress + "' has been banned for reason '" + type.getReason() + "'" );
-				banned = true;
-				banReason = type.getReason();
-				banWhen = Timings.epoch();
-				banTill = Timings.epoch() + type.banFor;
 				strikes.remove( type );
-				return;
+				ban( new Ban( type.getReason(), now, now + type.banFor ), ipAddress );
 			}
+		}
 
-			r.time = Timings.epoch();
+		boolean isBanned( long now )
+		{
+			Ban ban = this.ban;
+			return ban != null && ban.isActive( now );
+		}
+	}
 
-			strikes.put( type, r );
+	/**
+	 * A CIDR range, e.g., 192.168.0.0/16 or 2001:db8::/32
+	 */
+	static class IpRange
+	{
+		final String notation;
+		final byte[] network;
+		final int prefix;
+		volatile Ban ban;
+
+		IpRange( String notation )
+		{
+			int slash = notation.indexOf( '/' );
+			byte[] address = InetAddresses.forString( notation.substring( 0, slash ) ).getAddress();
+			prefix = Integer.parseInt( notation.substring( slash + 1 ) );
+			if ( prefix < 0 || prefix > address.length * 8 )
+				throw new IllegalArgumentException( "The CIDR range '" + notation + "' has an invalid prefix length." );
+
+			for ( int i = 0; i < address.length; i++ )
+				address[i] &= mask( i );
+
+			network = address;
+			try
+			{
+				this.notation = InetAddresses.toAddrString( InetAddress.getByAddress( address ) ) + "/" + prefix;
+			}
+			catch ( UnknownHostException e )
+			{
+				throw new IllegalArgumentException( e );
+			}
 		}
 
-		public IpTracker setBanned()
+		private int mask( int i )
 		{
-			return setBanned( true );
+			int bits = Math.max( 0, Math.min( 8, prefix - i * 8 ) );
+			return ( 0xFF00 >> bits ) & 0xFF;
 		}
 
-		public IpTracker setBanned( boolean banned )
+		boolean matches( byte[] address )
 		{
-			this.banned = banned;
-			return this;
+			if ( address.length != network.length )
+				return false;
+			for ( int i = 0; i < address.length && i * 8 < prefix; i++ )
+				if ( ( address[i] & mask( i ) ) != ( network[i] & 0xFF ) )
+					return false;
+			return true;
 		}
 	}
 
-	private static List<IpTracker> ips = new CopyOnWriteArrayList<>();
+	private static final String[] DEFAULT_BANS = new String[] {"94.23.193.70", "204.15.135.116", "222.91.96.117", "190.213.166.12"};
+
+	private static final Map<String, IpTracker> ips = new ConcurrentHashMap<>();
+
+	private static final List<IpRange> ranges = new CopyOnWriteArrayList<>();
+
+	private static final int maxTrackedIps = AppConfig.get().getInt( "server.security.maxTrackedIps", 100000 );
+
+	private static final AtomicBoolean evicting = new AtomicBoolean();
+
+	private static final Object banLogLock = new Object();
 
 	static
 	{
-		ips.add( new IpTracker( "94.23.193.70" ).setBanned() );
-		ips.add( new IpTracker( "204.15.135.116" ).setBanned() );
-		ips.add( new IpTracker( "222.91.96.117" ).setBanned() );
-		ips.add( new IpTracker( "190.213.166.12" ).setBanned() );
+		for ( String ip : DEFAULT_BANS )
+			get( ip ).ban = new Ban( AppConfig.get().getString( "server.defaultBanReason", "The Ban Hammer Has Spoken" ), 0, -1 );
 
-		List<String> linesCombined = new ArrayList<>();
+		File banLog = banLogFile();
+		if ( banLog.exists() )
+			try
+			{
+				for ( String line : UtilIO.readFileToLines( banLog ) )
+					replay( line );
+			}
+			catch ( IOException e )
+			{
+				NetworkManager.getLogger().severe( "Failed to load the banned IP log", e );
+			}
+		else
+			migrateBannedFiles();
+	}
 
-		try
-		{
-			File bannedIpFile = new File( AppConfig.get().getDirectory(), "banned-ipv4.txt" );
-			if ( !bannedIpFile.exists() )
-				bannedIpFile.createNewFile();
-			linesCombined.addAll( UtilIO.readFileToLines( bannedIpFile ) );
-		}
-		catch ( IOException e )
+	private static File banLogFile()
+	{
+		return new File( AppConfig.get().getDirectory(), "banned-ips.log" );
+	}
+
+	/**
+	 * The ban list was previously written to banned-ipv4.txt and banned-ipv6.txt on shutdown, they're imported into the ban log once
+	 */
+	private static void migrateBannedFiles()
+	{
+		for ( String name : new String[] {"banned-ipv4.txt", "banned-ipv6.txt"} )
 		{
-			NetworkManager.getLogger().severe( "Failed to load banned IPv4 file", e );
+			File bannedIpFile = new File( AppConfig.get().getDirectory(), name );
+			if ( bannedIpFile.exists() )
+				try
+				{
+					for ( String line : UtilIO.readFileToLines( bannedIpFile ) )
+						if ( !line.trim().isEmpty() )
+							banIp( line.trim() );
+				}
+				catch ( IOException | IllegalArgumentException e )
+				{
+					NetworkManager.getLogger().severe( "Failed to load banned IP file " + name, e );
+				}
 		}
+	}
 
+	/**
+	 * Applies a line of the ban log, {@code ban<tab>target<tab>when<tab>till<tab>reason} or {@code unban<tab>target}
+	 */
+	private static void replay( String line )
+	{
+		String[] parts = line.split( "\\t", 5 );
 		try
 		{
-			File bannedIpFile = new File( AppConfig.get().getDirectory(), "banned-ipv6.txt" );
-			if ( !bannedIpFile.exists() )
-				bannedIpFile.createNewFile();
-			linesCombined.addAll( UtilIO.readFileToLines( bannedIpFile ) );
+			if ( "ban".equals( parts[0] ) && parts.length == 5 )
+			{
+				Ban ban = new Ban( parts[4], Long.parseLong( parts[2] ), Long.parseLong( parts[3] ) );
+				if ( ban.isActive( Timings.epoch() ) )
+					apply( parts[1], ban );
+			}
+			else if ( "unban".equals( parts[0] ) && parts.length >= 2 )
+				apply( parts[1], null );
 		}
-		catch ( IOException e )
+		catch ( IllegalArgumentException e )
 		{
-			NetworkManager.getLogger().severe( "Failed to load banned IPv6 file", e );
+			NetworkManager.getLogger().warning( "Ignoring malformed line in the banned IP log: " + line );
 		}
+	}
 
-		for ( String line : linesCombined )
-			ips.add( new IpTracker( line ).setBanned() );
+	private static void appendBanLog( String line )
+	{
+		synchronized ( banLogLock )
+		{
+			try
+			{
+				Files.write( banLogFile().toPath(), Collections.singletonList( line ), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND );
+			}
+			catch ( IOException e )
+			{
+				NetworkManager.getLogger().severe( "Failed to append to the banned IP log", e );
+			}
+		}
 	}
 
-	public static void shutdown()
+	/**
+	 * Sets or clears the ban of an IP or CIDR range
+	 */
+	private static void apply( String target, Ban ban )
 	{
-		// TODO Add and remove lines from banned file once an ip is either banned and unbanned.
-		// TODO Save the ban timer so ips will be unbanned once they reach their thresholds.
+		if ( target.indexOf( '/' ) >= 0 )
+			synchronized ( ranges )
+			{
+				IpRange range = new IpRange( target );
+				IpRange existing = ranges.stream().filter( r -> r.notation.equals( range.notation ) ).findFirst().orElse( null );
+				if ( ban == null )
+				{
+					if ( existing != null )
+						ranges.remove( existing );
+				}
+				else if ( existing != null )
+					existing.ban = ban;
+				else
+				{
+					range.ban = ban;
+					ranges.add( range );
+				}
+			}
+		else
+			get( target ).ban = ban;
+	}
 
-		File bannedIp4File = new File( AppConfig.get().getDirectory(), "banned-ipv4.txt" );
-		File bannedIp6File = new File( AppConfig.get().getDirectory(), "banned-ipv6.txt" );
+	private static void ban( Ban ban, String target )
+	{
+		apply( target, ban );
+		appendBanLog( ban.toLine( target ) );
+		NetworkManager.getLogger().info( EnumColor.RED + "" + EnumColor.NEGATIVE + "The IP '" + target + "' has been banned for reason '" + ban.reason + "'" );
+	}
 
-		List<String> bannedIPv4 = new ArrayList<>();
-		List<String> bannedIPv6 = new ArrayList<>();
+	/**
+	 * Rewrites the ban log with only the bans still in effect
+	 */
+	public static void shutdown()
+	{
+		long now = Timings.epoch();
+		List<String> lines = new ArrayList<>();
 
-		for ( IpTracker ip : ips )
+		for ( IpTracker ip : ips.values() )
 		{
-			if ( ip.banned )
-				if ( UtilHttp.isValidIPv4( ip.ipAddress ) )
-					bannedIPv4.add( ip.ipAddress );
-				else if ( UtilHttp.isValidIPv6( ip.ipAddress ) )
-					bannedIPv6.add( ip.ipAddress );
-				else
-					NetworkManager.getLogger().info( "The string did not match any IPv4 or IPv6 pattern, it will not be saved. Is this a bug?" );
+			Ban ban = ip.ban;
+			if ( ban != null && ban.isActive( now ) )
+				lines.add( ban.toLine( ip.ipAddress ) );
+			else if ( Arrays.asList( DEFAULT_BANS ).contains( ip.ipAddress ) )
+				lines.add( "unban\t" + ip.ipAddress );
 		}
 
-		try
-		{
-			UtilIO.writeStringToFile( bannedIp4File, bannedIPv4.stream().collect( Collectors.joining( "\n" ) ) );
-		}
-		catch ( IOException e )
-		{
-			NetworkManager.getLogger().severe( "Failed to save banned IPv4 file", e );
-		}
+		for ( IpRange range : ranges )
+			if ( range.ban.isActive( now ) )
+				lines.add( range.ban.toLine( range.notation ) );
 
-		try
-		{
-			UtilIO.writeStringToFile( bannedIp6File, bannedIPv6.stream().collect( Collectors.joining( "\n" ) ) );
-		}
-		catch ( IOException e )
+		synchronized ( banLogLock )
 		{
-			NetworkManager.getLogger().severe( "Failed to save banned IPv6 file", e );
+			try
+			{
+				Path log = banLogFile().toPath();
+				Path tmp = log.resolveSibling( log.getFileName() + ".tmp" );
+				Files.write( tmp, lines, StandardCharsets.UTF_8 );
+				Files.move( tmp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch ( IOException e )
+			{
+				NetworkManager.getLogger().severe( "Failed to compact the banned IP log", e );
+			}
 		}
 	}
 
+	/**
+	 * Counts a strike against the IP, which is banned once it has too many strikes of the type.
+	 * Only enabled with server.security.autoBan, as a shared address would otherwise be banned for the behavior of a few clients.
+	 */
 	public static void addStrikeToIp( String ip, IpStrikeType type, String... args )
 	{
+		if ( !AppConfig.get().getBoolean( "server.security.autoBan", false ) )
+			return;
+
+		validate( ip );
 		get( ip ).addStrike( type, args );
 	}
 
+	/**
+	 * Permanently bans an IP address or CIDR range, e.g., 10.0.0.0/8
+	 */
 	public static void banIp( String ip )
 	{
-		get( ip ).banned = true;
+		banIp( ip, AppConfig.get().getString( "server.defaultBanReason", "The Ban Hammer Has Spoken" ), -1 );
+	}
+
+	/**
+	 * Bans an IP address or CIDR range
+	 *
+	 * @param ip      The IP address or CIDR range
+	 * @param reason  The ban reason
+	 * @param seconds The length of the ban, negative for permanent
+	 */
+	public static void banIp( String ip, String reason, int seconds )
+	{
+		if ( ip.indexOf( '/' ) < 0 )
+			validate( ip );
+
+		long now = Timings.epoch();
+		ban( new Ban( reason, now, seconds < 0 ? -1 : now + seconds ), ip );
+	}
+
+	private static void validate( String ip )
+	{
+		if ( !UtilHttp.isValidIPv4( ip ) && !UtilHttp.isValidIPv6( ip ) )
+			throw new IllegalArgumentException( "The provided IP '" + ip + "' is not a valid IPv4 or IPv6 address." );
 	}
 
 	private static IpTracker get( String ip )
 	{
-		return UtilLists.findOrNew( ips, t -> t.ipAddress.equals( ip ), new IpTracker( ip ) );
+		IpTracker tracker = ips.get( ip );
+		if ( tracker != null )
+			return tracker;
+
+		tracker = ips.computeIfAbsent( ip, IpTracker::new );
+		if ( ips.size() > maxTrackedIps && evicting.compareAndSet( false, true ) )
+			try
+			{
+				evict();
+			}
+			finally
+			{
+				evicting.set( false );
+			}
+		return tracker;
+	}
+
+	/**
+	 * Evicts the least recently seen IPs that are not banned, down to 90% of server.security.maxTrackedIps
+	 */
+	private static void evict()
+	{
+		long now = Timings.epoch();
+		int excess = ips.size() - maxTrackedIps * 9 / 10;
+
+		ips.values().stream().filter( t -> !t.isBanned( now ) ).sorted( Comparator.comparingLong( t -> t.lastSeen ) ).limit( Math.max( 0, excess ) ).collect( Collectors.toList() ).forEach( t -> ips.remove( t.ipAddress, t ) );
 	}
 
 	public static void isForbidden( ApacheHandler htaccess, Site site, WebInterpreter fi ) throws HttpError
@@ -292,15 +539,30 @@ public class NetworkSecurity implements EventRegistrar, TaskRegistrar, Listener
 
 	public static boolean isIpBannedWithException( String ip )
 	{
-		if ( !UtilHttp.isValidIPv4( ip ) || !UtilHttp.isValidIPv6( ip ) )
-			throw new IllegalArgumentException( "The provided IP '" + ip + "' is not a valid IPv4 or IPv6 address." );
+		validate( ip );
+
+		long now = Timings.epoch();
+		IpTracker tracker = ips.get( ip );
+		if ( tracker != null && tracker.isBanned( now ) )
+			return true;
+
+		if ( ranges.isEmpty() )
+			return false;
 
-		return get( ip ).banned;
+		byte[] address = InetAddresses.forString( ip ).getAddress();
+		for ( IpRange range : ranges )
+			if ( range.ban.isActive( now ) && range.matches( address ) )
+				return true;
+		return false;
 	}
 
+	/**
+	 * Lifts the ban on an IP address or CIDR range
+	 */
 	public static void unbanIp( String ip )
 	{
-		get( ip ).banned = false;
+		apply( ip, null );
+		appendBanLog( "unban\t" + ip );
 	}
 
 	public NetworkSecurity()
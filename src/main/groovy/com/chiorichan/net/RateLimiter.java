@@ -0,0 +1,287 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.net;
+
+import com.chiorichan.AppConfig;
+import com.chiorichan.http.HttpRequestWrapper;
+import com.chiorichan.site.Site;
+import com.google.common.net.InetAddresses;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throttles heavy clients before they can saturate the worker pool.
+ * <p>
+ * Connections are capped per IP and per subnet (/24 for IPv4, /64 for IPv6) using server.rateLimit.maxConnectionsPerIp and maxConnectionsPerSubnet.
+ * Both caps are disabled by default, as clients behind a NAT or proxy share an address and would be refused together.
+ * Requests are limited by token buckets per IP, per subnet and per site, along with a cap on the requests a site processes concurrently.
+ * The request limits are read from the site configuration, falling back to server.rateLimit:
+ * <pre>
+ * rateLimit:
+ *   ip:
+ *     requestsPerMinute: 600
+ *     burst: 60
+ *   subnet:
+ *     requestsPerMinute: 3000
+ *     burst: 300
+ *   site:
+ *     requestsPerMinute: 0
+ *     burst: 0
+ *     maxConcurrent: 256
+ * </pre>
+ * Requests are keyed by the socket address, the CDN client IP header is only honoured when the peer is within one of the
+ * CIDR ranges listed in server.rateLimit.trustedProxies, otherwise any client could pick its own bucket.
+ * A rate or cap of zero disables that limit, server.rateLimit.enabled false disables them all. Counters are lock-free and idle ones are removed by {@link #sweep()}.
+ */
+public class RateLimiter
+{
+	/**
+	 * Token bucket implemented as the generic cell rate algorithm, the whole state is the theoretical arrival time of the next request
+	 */
+	private static class Bucket
+	{
+		private final AtomicLong tat;
+
+		Bucket( long now )
+		{
+			tat = new AtomicLong( now );
+		}
+
+		/**
+		 * @return Zero if a token was taken, otherwise the nanoseconds until one is available
+		 */
+		long take( int perMinute, int burst, long now )
+		{
+			long interval = TimeUnit.MINUTES.toNanos( 1 ) / perMinute;
+			long tolerance = interval * ( Math.max( burst, 1 ) - 1 );
+
+			for ( ; ; )
+			{
+				long prev = tat.get();
+				long start = Math.max( prev, now );
+				long wait = start - now - tolerance;
+
+				if ( wait > 0 )
+					return wait;
+				if ( tat.compareAndSet( prev, start + interval ) )
+					return 0;
+			}
+		}
+
+		/**
+		 * @return Is the bucket full, so removing it changes nothing
+		 */
+		boolean isIdle( long now )
+		{
+			return tat.get() <= now;
+		}
+	}
+
+	private static final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+	private static final Map<String, AtomicInteger> counters = new ConcurrentHashMap<>();
+
+	private static volatile List<NetworkSecurity.IpRange> trustedProxies = null;
+
+	private RateLimiter()
+	{
+
+	}
+
+	/**
+	 * @param ip The IP address
+	 * @return The IP's subnet, /24 for IPv4 and /64 for IPv6
+	 */
+	static String subnet( String ip )
+	{
+		try
+		{
+			byte[] address = InetAddresses.forString( ip ).getAddress();
+			int len = address.length == 4 ? 3 : 8;
+
+			StringBuilder sb = new StringBuilder( len * 3 + 4 );
+			for ( int i = 0; i < len; i++ )
+				sb.append( Integer.toHexString( address[i] & 0xFF ) ).append( ':' );
+			return sb.append( len * 8 ).toString();
+		}
+		catch ( IllegalArgumentException e )
+		{
+			return ip;
+		}
+	}
+
+	private static List<NetworkSecurity.IpRange> trustedProxies()
+	{
+		if ( trustedProxies == null )
+		{
+			List<NetworkSecurity.IpRange> ranges = new ArrayList<>();
+			for ( String notation : AppConfig.get().getStringList( "server.rateLimit.trustedProxies", new ArrayList<>() ) )
+				try
+				{
+					ranges.add( new NetworkSecurity.IpRange( notation.contains( "/" ) ? notation : notation + ( notation.contains( ":" ) ? "/128" : "/32" ) ) );
+				}
+				catch ( IllegalArgumentException e )
+				{
+					NetworkManager.getLogger().warning( "Ignoring the invalid trusted proxy range '" + notation + "': " + e.getMessage() );
+				}
+			trustedProxies = ranges;
+		}
+		return trustedProxies;
+	}
+
+	/**
+	 * @param request The request
+	 * @return The CDN supplied client IP if the peer is a trusted proxy, otherwise the socket address
+	 */
+	public static String clientAddress( HttpRequestWrapper request )
+	{
+		String peer = request.getIpAddress( false );
+		String forwarded = request.getIpAddress( true );
+
+		if ( forwarded.equals( peer ) || !InetAddresses.isInetAddress( forwarded ) )
+			return peer;
+
+		byte[] address = InetAddresses.forString( peer ).getAddress();
+		for ( NetworkSecurity.IpRange range : trustedProxies() )
+			if ( range.matches( address ) )
+				return forwarded;
+
+		return peer;
+	}
+
+	private static int limit( Site site, String key, int def )
+	{
+		int value = AppConfig.get().getInt( "server.rateLimit." + key, def );
+		return site == null ? value : site.getConfig().getInt( "rateLimit." + key, value );
+	}
+
+	/**
+	 * Increments a counter unless it would exceed the max
+	 */
+	private static boolean acquire( String key, int max )
+	{
+		if ( max <= 0 )
+			return true;
+
+		for ( ; ; )
+		{
+			AtomicInteger count = counters.computeIfAbsent( key, k -> new AtomicInteger() );
+			int n = count.incrementAndGet();
+
+			// The counter was removed by the sweep while we got it
+			if ( n < 0 )
+			{
+				counters.remove( key, count );
+				continue;
+			}
+
+			if ( n > max )
+			{
+				count.decrementAndGet();
+				return false;
+			}
+			return true;
+		}
+	}
+
+	private static void release( String key )
+	{
+		AtomicInteger count = counters.get( key );
+		if ( count != null )
+			count.decrementAndGet();
+	}
+
+	private static long take( String key, int perMinute, int burst, long now )
+	{
+		if ( perMinute <= 0 )
+			return 0;
+		return buckets.computeIfAbsent( key, k -> new Bucket( now ) ).take( perMinute, burst, now );
+	}
+
+	/**
+	 * Claims a connection slot for the IP, must be followed by {@link #releaseConnection(String)} if successful
+	 *
+	 * @param ip The remote IP address
+	 * @return Was the connection allowed
+	 */
+	public static boolean tryConnect( String ip )
+	{
+		if ( !acquire( "conn|" + ip, AppConfig.get().getInt( "server.rateLimit.maxConnectionsPerIp", 0 ) ) )
+			return false;
+
+		if ( !acquire( "conn|" + subnet( ip ), AppConfig.get().getInt( "server.rateLimit.maxConnectionsPerSubnet", 0 ) ) )
+		{
+			release( "conn|" + ip );
+			return false;
+		}
+		return true;
+	}
+
+	public static void releaseConnection( String ip )
+	{
+		release( "conn|" + ip );
+		release( "conn|" + subnet( ip ) );
+	}
+
+	/**
+	 * Takes a token from the IP, subnet and site buckets and claims a concurrent request slot with the site,
+	 * the slot must be released with {@link #releaseRequest(Site)} if successful
+	 *
+	 * @param site The site the request is for
+	 * @param ip   The remote IP address
+	 * @return Zero if the request may proceed, otherwise the seconds the client should wait before retrying
+	 */
+	public static long tryRequest( Site site, String ip )
+	{
+		if ( !AppConfig.get().getBoolean( "server.rateLimit.enabled", true ) )
+			return 0;
+
+		long now = System.nanoTime();
+		String siteId = site == null ? "" : site.getId();
+
+		long wait = take( siteId + "|ip|" + ip, limit( site, "ip.requestsPerMinute", 0 ), limit( site, "ip.burst", 0 ), now );
+		if ( wait == 0 )
+			wait = take( siteId + "|net|" + subnet( ip ), limit( site, "subnet.requestsPerMinute", 0 ), limit( site, "subnet.burst", 0 ), now );
+		if ( wait == 0 )
+			wait = take( siteId, limit( site, "site.requestsPerMinute", 0 ), limit( site, "site.burst", 0 ), now );
+
+		if ( wait > 0 )
+			return Math.max( 1, TimeUnit.NANOSECONDS.toSeconds( wait + TimeUnit.SECONDS.toNanos( 1 ) - 1 ) );
+
+		return acquire( "site|" + siteId, limit( site, "site.maxConcurrent", 0 ) ) ? 0 : 1;
+	}
+
+	public static void releaseRequest( Site site )
+	{
+		release( "site|" + ( site == null ? "" : site.getId() ) );
+	}
+
+	/**
+	 * Removes full buckets and unused counters, called periodically by the {@link NetworkManager}
+	 */
+	public static void sweep()
+	{
+		long now = System.nanoTime();
+		buckets.values().removeIf( bucket -> bucket.isIdle( now ) );
+
+		for ( Map.Entry<String, AtomicInteger> entry : counters.entrySet() )
+		{
+			// Poisoned so a concurrent acquire notices and starts over with a new counter
+			if ( entry.getValue().compareAndSet( 0, Integer.MIN_VALUE ) )
+				counters.remove( entry.getKey(), entry.getValue() );
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.session;
+
+import com.chiorichan.site.Site;
+import com.chiorichan.tasks.Timings;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Seals the variables of anonymous sessions into an encrypted and signed cookie, so they need no server side storage.
+ * Enabled per site in the site configuration:
+ * <pre>
+ * sessions:
+ *   clientSide:
+ *     enabled: true
+ *     maxSize: 3072
+ *     keys:
+ *     - current secret
+ *     - previous secret
+ * </pre>
+ * The first key seals new cookies while the others are still accepted, so keys can be rotated.
+ * The value is {@code [byte version][key id][iv][AES-128-CBC ciphertext][HMAC-SHA256]} in Base64url, the MAC covering everything before it.
+ */
+final class ClientSessionCookie
+{
+	private static final byte VERSION = 1;
+	private static final int KEY_ID = 4;
+	private static final int IV = 16;
+	private static final int MAC = 32;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private static final Map<String, Key> keys = new ConcurrentHashMap<>();
+
+	static class Key
+	{
+		final byte[] id;
+		final SecretKeySpec enc;
+		final SecretKeySpec mac;
+
+		Key( String secret )
+		{
+			byte[] bytes = secret.getBytes( StandardCharsets.UTF_8 );
+			id = Arrays.copyOf( derive( bytes, "id" ), KEY_ID );
+			enc = new SecretKeySpec( Arrays.copyOf( derive( bytes, "enc" ), 16 ), "AES" );
+			mac = new SecretKeySpec( derive( bytes, "mac" ), "HmacSHA256" );
+		}
+
+		private static byte[] derive( byte[] secret, String label )
+		{
+			try
+			{
+				Mac mac = Mac.getInstance( "HmacSHA256" );
+				mac.init( new SecretKeySpec( secret, "HmacSHA256" ) );
+				return mac.doFinal( label.getBytes( StandardCharsets.UTF_8 ) );
+			}
+			catch ( GeneralSecurityException e )
+			{
+				throw new IllegalStateException( e );
+			}
+		}
+	}
+
+	private ClientSessionCookie()
+	{
+
+	}
+
+	static boolean isEnabled( Site site )
+	{
+		return site != null && site.getConfig().getBoolean( "sessions.clientSide.enabled", false ) && !keys( site ).isEmpty();
+	}
+
+	static String cookieName( Site site )
+	{
+		return site.getSessionKey() + "Data";
+	}
+
+	private static List<Key> keys( Site site )
+	{
+		List<Key> result = new ArrayList<>();
+		for ( String secret : site.getConfig().getStringList( "sessions.clientSide.keys" ) )
+			if ( secret != null && !secret.isEmpty() )
+				result.add( keys.computeIfAbsent( secret, Key::new ) );
+		return result;
+	}
+
+	/**
+	 * @return The sealed cookie value or null if it would exceed sessions.clientSide.maxSize
+	 */
+	static String seal( Site site, long timeout, Map<String, String> data )
+	{
+		List<Key> keys = keys( site );
+		if ( keys.isEmpty() )
+			return null;
+
+		Key key = keys.get( 0 );
+		byte[] payload = SessionCodec.encode( data );
+
+		try
+		{
+			byte[] iv = new byte[IV];
+			RANDOM.nextBytes( iv );
+
+			Cipher cipher = Cipher.getInstance( "AES/CBC/PKCS5Padding" );
+			cipher.init( Cipher.ENCRYPT_MODE, key.enc, new IvParameterSpec( iv ) );
+			byte[] ciphertext = cipher.doFinal( ByteBuffer.allocate( 8 + payload.length ).putLong( timeout ).put( payload ).array() );
+
+			ByteBuffer sealed = ByteBuffer.allocate( 1 + KEY_ID + IV + ciphertext.length + MAC );
+			sealed.put( VERSION ).put( key.id ).put( iv ).put( ciphertext );
+
+			Mac mac = Mac.getInstance( "HmacSHA256" );
+			mac.init( key.mac );
+			mac.update( sealed.array(), 0, sealed.position() );
+			sealed.put( mac.doFinal() );
+
+			String value = Base64.getUrlEncoder().withoutPadding().encodeToString( sealed.array() );
+			return value.length() > site.getConfig().getInt( "sessions.clientSide.maxSize", 3072 ) ? null : value;
+		}
+		catch ( GeneralSecurityException e )
+		{
+			throw new IllegalStateException( "Failed to seal the client side session", e );
+		}
+	}
+
+	/**
+	 * Verifies and decrypts the cookie value into the session data
+	 *
+	 * @return Was the value valid, signed by a configured key and not expired
+	 */
+	static boolean open( Site site, String value, SessionData into )
+	{
+		try
+		{
+			byte[] sealed = Base64.getUrlDecoder().decode( value );
+			if ( sealed.length < 1 + KEY_ID + IV + 16 + MAC || sealed[0] != VERSION )
+				return false;
+
+			byte[] id = Arrays.copyOfRange( sealed, 1, 1 + KEY_ID );
+			Key key = keys( site ).stream().filter( k -> Arrays.equals( k.id, id ) ).findFirst().orElse( null );
+			if ( key == null )
+				return false;
+
+			Mac mac = Mac.getInstance( "HmacSHA256" );
+			mac.init( key.mac );
+			mac.update( sealed, 0, sealed.length - MAC );
+			if ( !MessageDigest.isEqual( mac.doFinal(), Arrays.copyOfRange( sealed, sealed.length - MAC, sealed.length ) ) )
+				return false;
+
+			Cipher cipher = Cipher.getInstance( "AES/CBC/PKCS5Padding" );
+			cipher.init( Cipher.DECRYPT_MODE, key.enc, new IvParameterSpec( sealed, 1 + KEY_ID, IV ) );
+			ByteBuffer plain = ByteBuffer.wrap( cipher.doFinal( sealed, 1 + KEY_ID + IV, sealed.length - MAC - 1 - KEY_ID - IV ) );
+
+			long timeout = plain.getLong();
+			if ( timeout > 0 && timeout < Timings.epoch() )
+				return false;
+
+			byte[] payload = new byte[plain.remaining()];
+			plain.get( payload );
+
+			into.data = SessionCodec.decode( payload );
+			into.timeout = timeout;
+			return true;
+		}
+		catch ( IllegalArgumentException | GeneralSecurityException | SessionException e )
+		{
+			return false;
+		}
+	}
+}
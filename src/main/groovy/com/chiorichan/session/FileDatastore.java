@@ -15,14 +15,17 @@ import com.chiorichan.permission.PermissionManager;
 import com.chiorichan.tasks.Timings;
 import com.chiorichan.utils.UtilIO;
 import com.google.common.collect.Lists;
-import com.google.common.reflect.TypeToken;
-import com.google.gson.Gson;
 import org.apache.commons.io.filefilter.FileFilterUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileDatastore extends SessionDatastore
 {
@@ -45,14 +48,13 @@ public class FileDatastore extends SessionDatastore
 
 			ipAddress = wrapper.getIpAddress();
 			site = wrapper.getLocation() == null ? null : wrapper.getLocation().getId();
-
-			save();
 		}
 
 		@Override
 		void destroy() throws SessionException
 		{
-			file.delete();
+			if ( file != null )
+				file.delete();
 		}
 
 		private void readSession() throws SessionException
@@ -74,10 +76,7 @@ public class FileDatastore extends SessionDatastore
 			site = yaml.getString( "site" );
 
 			if ( !yaml.getString( "data", "" ).isEmpty() )
-				data = new Gson().fromJson( yaml.getString( "data" ), new TypeToken<Map<String, String>>()
-				{
-					private static final long serialVersionUID = -1734352198651744570L;
-				}.getType() );
+				data = SessionCodec.decodeString( yaml.getString( "data" ) );
 		}
 
 		@Override
@@ -87,25 +86,28 @@ public class FileDatastore extends SessionDatastore
 		}
 
 		@Override
-		void save() throws SessionException
+		void save( Snapshot snapshot ) throws SessionException
 		{
-			String dataJson = new Gson().toJson( data );
+			String dataEncoded = SessionCodec.encodeToString( snapshot.data );
 
 			if ( file == null || !file.exists() )
-				file = new File( getSessionsDirectory(), sessionId + ".yaml" );
+				file = new File( getSessionsDirectory(), snapshot.sessionId + ".yaml" );
 
 			YamlConfiguration yaml = new YamlConfiguration();
 
-			yaml.set( "sessionName", sessionName );
-			yaml.set( "sessionId", sessionId );
-			yaml.set( "timeout", timeout );
-			yaml.set( "ipAddress", ipAddress );
-			yaml.set( "site", site );
-			yaml.set( "data", dataJson );
+			yaml.set( "sessionName", snapshot.sessionName );
+			yaml.set( "sessionId", snapshot.sessionId );
+			yaml.set( "timeout", snapshot.timeout );
+			yaml.set( "ipAddress", snapshot.ipAddress );
+			yaml.set( "site", snapshot.site );
+			yaml.set( "data", dataEncoded );
 
+			// Written to a temporary file and renamed over the original, so a crash never leaves a partially written session
+			File tmp = new File( file.getParentFile(), file.getName() + ".tmp" );
 			try
 			{
-				yaml.save( file );
+				yaml.save( tmp );
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
 			}
 			catch ( IOException e )
 			{
@@ -116,6 +118,11 @@ public class FileDatastore extends SessionDatastore
 
 	private static File sessionsDirectory = null;
 
+	/**
+	 * The timeout of each session file as of the modification time it was read at, so {@link #purgeExpired()} only parses changed files
+	 */
+	private final Map<String, long[]> expiryIndex = new ConcurrentHashMap<>();
+
 	public static File getSessionsDirectory()
 	{
 		if ( sessionsDirectory == null )
@@ -132,6 +139,59 @@ public class FileDatastore extends SessionDatastore
 		return new FileSessionData( sessionId, wrapper );
 	}
 
+	@Override
+	SessionData loadSession( String sessionId ) throws SessionException
+	{
+		File file = new File( getSessionsDirectory(), sessionId + ".yaml" );
+		return file.isFile() ? new FileSessionData( file ) : null;
+	}
+
+	@Override
+	void purgeExpired() throws SessionException
+	{
+		File[] files = getSessionsDirectory().listFiles();
+		if ( files == null )
+			return;
+
+		long now = Timings.epoch();
+		int expired = 0;
+
+		// Sessions are saved after their timeout is rearmed, so a file written within the shortest timeout can't have expired yet
+		int shortest = Math.min( SessionManager.getDefaultTimeout(), Math.min( SessionManager.getDefaultTimeoutWithLogin(), SessionManager.getDefaultTimeoutWithRememberMe() ) );
+		long recent = ( now - shortest ) * 1000;
+
+		Set<String> names = new HashSet<>();
+		for ( File f : files )
+		{
+			String name = f.getName();
+			if ( !f.isFile() || !name.endsWith( ".yaml" ) )
+				continue;
+
+			names.add( name );
+			long modified = f.lastModified();
+			if ( modified > recent || SessionManager.sessions.containsKey( name.substring( 0, name.length() - 5 ) ) )
+				continue;
+
+			long[] cached = expiryIndex.get( name );
+			long timeout;
+			if ( cached != null && cached[0] == modified )
+				timeout = cached[1];
+			else
+			{
+				timeout = YamlConfiguration.loadConfiguration( f ).getLong( "timeout", 0 );
+				expiryIndex.put( name, new long[] {modified, timeout} );
+			}
+
+			if ( timeout > 0 && timeout < now && f.delete() )
+				expired++;
+		}
+
+		expiryIndex.keySet().retainAll( names );
+
+		if ( expired > 0 )
+			SessionManager.getLogger().info( String.format( "FileSession removed %s expired sessions from the datastore!", expired ) );
+	}
+
 	@Override
 	List<SessionData> getSessions() throws SessionException
 	{
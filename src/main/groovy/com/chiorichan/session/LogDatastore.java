@@ -0,0 +1,563 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.session;
+
+import com.chiorichan.AppConfig;
+import com.chiorichan.tasks.TaskManager;
+import com.chiorichan.tasks.Ticks;
+import com.chiorichan.tasks.Timings;
+import com.chiorichan.utils.UtilIO;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Stores sessions in a segmented append-only log, selected with {@code sessions.datastore: log}.
+ * <p>
+ * Each save appends a binary record to the memory mapped active segment and a destroy appends a tombstone,
+ * an in-memory index points each session id at its latest record so startup only scans the segments once.
+ * Expired sessions are periodically replaced by tombstones, and sealed segments that are mostly superseded records are compacted in the background,
+ * by moving their live records to the active segment and deleting the segment file.
+ * <p>
+ * Records are {@code [int length][int crc32][byte type][string sessionId][payload]}, strings are a length prefixed UTF-8
+ * and the session variables are encoded by the {@link SessionCodec}.
+ */
+public class LogDatastore extends SessionDatastore
+{
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final int HEADER = 8;
+	private static final Pattern SEGMENT_NAME = Pattern.compile( "segment-(\\d+)\\.log" );
+
+	class LogSessionData extends SessionData
+	{
+		LogSessionData( String sessionId, SessionWrapper wrapper )
+		{
+			super( LogDatastore.this, false );
+			this.sessionId = sessionId;
+
+			ipAddress = wrapper.getIpAddress();
+			site = wrapper.getLocation() == null ? null : wrapper.getLocation().getId();
+		}
+
+		LogSessionData( ByteBuffer body ) throws SessionException
+		{
+			super( LogDatastore.this, true );
+			decode( body, this );
+		}
+
+		@Override
+		void destroy() throws SessionException
+		{
+			delete( sessionId );
+		}
+
+		@Override
+		void reload() throws SessionException
+		{
+			ByteBuffer body = read( sessionId );
+			if ( body != null )
+				decode( body, this );
+		}
+
+		@Override
+		void save( Snapshot snapshot ) throws SessionException
+		{
+			put( snapshot );
+		}
+	}
+
+	static class Segment
+	{
+		final int id;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+
+		/**
+		 * The end of the last record
+		 */
+		int position = 0;
+
+		/**
+		 * Bytes used by records that are still referenced by the index
+		 */
+		long liveBytes = 0;
+
+		Segment( int id, File file, int size ) throws IOException
+		{
+			this.id = id;
+			this.file = file;
+
+			raf = new RandomAccessFile( file, "rw" );
+			if ( raf.length() < size )
+				raf.setLength( size );
+			buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, raf.length() );
+		}
+
+		ByteBuffer body( int offset )
+		{
+			ByteBuffer body = buffer.duplicate();
+			body.position( offset + HEADER );
+			body.limit( offset + HEADER + buffer.getInt( offset ) );
+			return body.slice();
+		}
+
+		int recordSize( int offset )
+		{
+			return HEADER + buffer.getInt( offset );
+		}
+
+		void close()
+		{
+			buffer.force();
+			UtilIO.closeQuietly( raf );
+		}
+	}
+
+	public static File getSessionsDirectory()
+	{
+		File dir = new File( AppConfig.get().getDirectory().getAbsolutePath(), "sessions-log" );
+		UtilIO.setDirectoryAccessWithException( dir );
+		return dir;
+	}
+
+	private static long location( int segment, int offset )
+	{
+		return ( ( long ) segment << 32 ) | ( offset & 0xFFFFFFFFL );
+	}
+
+	private static int segmentOf( long location )
+	{
+		return ( int ) ( location >>> 32 );
+	}
+
+	private static int offsetOf( long location )
+	{
+		return ( int ) location;
+	}
+
+	private static void writeString( DataOutputStream out, String str ) throws IOException
+	{
+		if ( str == null )
+			out.writeInt( -1 );
+		else
+		{
+			byte[] bytes = str.getBytes( StandardCharsets.UTF_8 );
+			out.writeInt( bytes.length );
+			out.write( bytes );
+		}
+	}
+
+	private static String readString( ByteBuffer buf )
+	{
+		int len = buf.getInt();
+		if ( len < 0 )
+			return null;
+		byte[] bytes = new byte[len];
+		buf.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * @param sessionId The session id
+	 * @param data      The session data or null to encode a tombstone
+	 */
+	private static byte[] encode( String sessionId, SessionData.Snapshot data ) throws SessionException
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream( 256 );
+			DataOutputStream out = new DataOutputStream( bytes );
+
+			out.writeByte( data == null ? DELETE : PUT );
+			writeString( out, sessionId );
+
+			if ( data != null )
+			{
+				out.writeLong( data.timeout );
+				writeString( out, data.sessionName );
+				writeString( out, data.ipAddress );
+				writeString( out, data.site );
+
+				byte[] payload = SessionCodec.encode( data.data );
+				out.writeInt( payload.length );
+				out.write( payload );
+			}
+
+			return bytes.toByteArray();
+		}
+		catch ( IOException e )
+		{
+			throw new SessionException( "There was an exception thrown while trying to encode the session.", e );
+		}
+	}
+
+	private static void decode( ByteBuffer body, SessionData data ) throws SessionException
+	{
+		ByteBuffer buf = body.duplicate();
+		buf.get(); // Type
+		data.sessionId = readString( buf );
+		data.timeout = buf.getLong();
+
+		String sessionName = readString( buf );
+		if ( sessionName != null && !sessionName.isEmpty() )
+			data.sessionName = sessionName;
+		data.ipAddress = readString( buf );
+		data.site = readString( buf );
+
+		byte[] payload = new byte[buf.getInt()];
+		buf.get( payload );
+		data.data = SessionCodec.decode( payload );
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final int compactThreshold;
+
+	/**
+	 * Segments by id, guarded by this
+	 */
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+	/**
+	 * The location of the latest record of each stored session, guarded by this
+	 */
+	private final Map<String, Long> index = new HashMap<>();
+
+	private Segment active = null;
+
+	LogDatastore() throws SessionException
+	{
+		directory = getSessionsDirectory();
+		segmentSize = AppConfig.get().getInt( "sessions.log.segmentSize", 16 ) * 1024 * 1024;
+		compactThreshold = AppConfig.get().getInt( "sessions.log.compactThreshold", 50 );
+
+		Timings.start( this );
+
+		try
+		{
+			open();
+		}
+		catch ( IOException e )
+		{
+			shutdown();
+			throw new SessionException( "There was an exception thrown while trying to open the session log.", e );
+		}
+
+		SessionManager.getLogger().info( "LogSession indexed " + index.size() + " sessions in " + segments.size() + " segment(s) in " + Timings.finish( this ) + "ms!" );
+
+		TaskManager.instance().scheduleAsyncRepeatingTask( SessionManager.instance(), Ticks.MINUTE, Ticks.MINUTE * AppConfig.get().getInt( "sessions.log.compactInterval", 30 ), this::compact );
+	}
+
+	private synchronized void open() throws IOException
+	{
+		File[] files = directory.listFiles();
+		if ( files != null )
+			for ( File file : files )
+			{
+				Matcher matcher = SEGMENT_NAME.matcher( file.getName() );
+				if ( matcher.matches() )
+				{
+					int id = Integer.parseInt( matcher.group( 1 ) );
+					segments.put( id, new Segment( id, file, 0 ) );
+				}
+			}
+
+		for ( Segment segment : segments.values() )
+			scan( segment );
+
+		if ( !segments.isEmpty() )
+			active = segments.lastEntry().getValue();
+	}
+
+	/**
+	 * Replays the records of a segment into the index, stopping at the first empty or torn record
+	 */
+	private void scan( Segment segment )
+	{
+		MappedByteBuffer buf = segment.buffer;
+		CRC32 crc = new CRC32();
+		int pos = 0;
+
+		while ( pos + HEADER <= buf.capacity() )
+		{
+			int len = buf.getInt( pos );
+			if ( len <= 0 || pos + HEADER + len > buf.capacity() )
+				break;
+
+			ByteBuffer body = segment.body( pos );
+			crc.reset();
+			crc.update( body.duplicate() );
+
+			if ( ( int ) crc.getValue() != buf.getInt( pos + 4 ) )
+			{
+				SessionManager.getLogger().warning( String.format( "The session log segment '%s' has a corrupt record at offset %s, the remainder of the segment was ignored.", segment.file.getName(), pos ) );
+				break;
+			}
+
+			String sessionId = readString( ( ByteBuffer ) body.duplicate().position( 1 ) );
+
+			if ( body.get( 0 ) == PUT )
+			{
+				release( index.put( sessionId, location( segment.id, pos ) ) );
+				segment.liveBytes += HEADER + len;
+			}
+			else
+				release( index.remove( sessionId ) );
+
+			pos += HEADER + len;
+		}
+
+		segment.position = pos;
+	}
+
+	/**
+	 * Marks the record at the location as superseded
+	 */
+	private void release( Long location )
+	{
+		if ( location == null )
+			return;
+
+		Segment segment = segments.get( segmentOf( location ) );
+		if ( segment != null )
+			segment.liveBytes -= segment.recordSize( offsetOf( location ) );
+	}
+
+	private long append( byte[] body ) throws SessionException
+	{
+		int size = HEADER + body.length;
+
+		try
+		{
+			if ( active == null || active.position + size > active.buffer.capacity() )
+			{
+				if ( active != null )
+					active.buffer.force();
+
+				int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+				active = new Segment( id, new File( directory, String.format( "segment-%06d.log", id ) ), Math.max( segmentSize, size ) );
+				segments.put( id, active );
+			}
+		}
+		catch ( IOException e )
+		{
+			throw new SessionException( "There was an exception thrown while trying to create a session log segment.", e );
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update( body );
+
+		int offset = active.position;
+		ByteBuffer buf = active.buffer.duplicate();
+		buf.position( offset + HEADER );
+		buf.put( body );
+
+		// The length is written last, a record is only visible to a scan once complete
+		active.buffer.putInt( offset + 4, ( int ) crc.getValue() );
+		active.buffer.putInt( offset, body.length );
+		active.position += size;
+
+		return location( active.id, offset );
+	}
+
+	synchronized void put( SessionData.Snapshot data ) throws SessionException
+	{
+		byte[] body = encode( data.sessionId, data );
+		long location = append( body );
+		release( index.put( data.sessionId, location ) );
+		active.liveBytes += HEADER + body.length;
+	}
+
+	synchronized void delete( String sessionId ) throws SessionException
+	{
+		Long location = index.remove( sessionId );
+		if ( location != null )
+		{
+			release( location );
+			append( encode( sessionId, null ) );
+		}
+	}
+
+	synchronized ByteBuffer read( String sessionId )
+	{
+		Long location = index.get( sessionId );
+		if ( location == null )
+			return null;
+		return segments.get( segmentOf( location ) ).body( offsetOf( location ) );
+	}
+
+	/**
+	 * Compacts sealed segments where less than sessions.log.compactThreshold percent of the bytes are live records.
+	 * Live records are moved to the active segment and expired ones are dropped. Tombstones are only kept while an
+	 * older segment might still hold a record of the same session.
+	 */
+	synchronized void compact()
+	{
+		long now = Timings.epoch();
+		int compacted = 0;
+
+		for ( Segment segment : new ArrayList<>( segments.values() ) )
+		{
+			if ( segment == active || segment.liveBytes * 100 > ( long ) segment.position * compactThreshold )
+				continue;
+
+			boolean oldest = segment.id == segments.firstKey();
+
+			try
+			{
+				for ( int pos = 0; pos < segment.position; pos += segment.recordSize( pos ) )
+				{
+					ByteBuffer body = segment.body( pos );
+					ByteBuffer buf = body.duplicate();
+					byte type = buf.get();
+					String sessionId = readString( buf );
+
+					if ( type == PUT )
+					{
+						Long latest = index.get( sessionId );
+						if ( latest == null || latest != location( segment.id, pos ) )
+							continue;
+
+						long timeout = buf.getLong();
+						if ( timeout > 0 && timeout < now )
+						{
+							index.remove( sessionId );
+							if ( !oldest )
+								append( encode( sessionId, null ) );
+						}
+						else
+						{
+							byte[] bytes = new byte[body.remaining()];
+							body.duplicate().get( bytes );
+							index.put( sessionId, append( bytes ) );
+							active.liveBytes += HEADER + bytes.length;
+						}
+					}
+					else if ( !oldest && !index.containsKey( sessionId ) )
+					{
+						byte[] bytes = new byte[body.remaining()];
+						body.duplicate().get( bytes );
+						append( bytes );
+					}
+				}
+			}
+			catch ( SessionException e )
+			{
+				SessionManager.getLogger().severe( "Failed to compact the session log segment '" + segment.file.getName() + "'", e );
+				return;
+			}
+
+			active.buffer.force();
+			segments.remove( segment.id );
+			segment.close();
+			if ( !segment.file.delete() )
+				SessionManager.getLogger().warning( "Failed to delete the compacted session log segment '" + segment.file.getName() + "'" );
+			compacted++;
+		}
+
+		if ( compacted > 0 )
+			SessionManager.getLogger().info( "LogSession compacted " + compacted + " segment(s), " + segments.size() + " remaining." );
+	}
+
+	/**
+	 * Replaces the latest record of each expired session with a tombstone, releasing its bytes so {@link #compact()} can reclaim the segment
+	 */
+	@Override
+	synchronized void purgeExpired() throws SessionException
+	{
+		long now = Timings.epoch();
+		List<String> expired = Lists.newArrayList();
+
+		for ( Map.Entry<String, Long> entry : index.entrySet() )
+		{
+			if ( SessionManager.sessions.containsKey( entry.getKey() ) )
+				continue;
+
+			ByteBuffer buf = segments.get( segmentOf( entry.getValue() ) ).body( offsetOf( entry.getValue() ) );
+			buf.get(); // Type
+			readString( buf );
+
+			long timeout = buf.getLong();
+			if ( timeout > 0 && timeout < now )
+				expired.add( entry.getKey() );
+		}
+
+		for ( String sessionId : expired )
+			delete( sessionId );
+
+		if ( expired.size() > 0 )
+			SessionManager.getLogger().info( String.format( "LogSession removed %s expired sessions from the datastore!", expired.size() ) );
+	}
+
+	@Override
+	SessionData createSession( String sessionId, SessionWrapper wrapper ) throws SessionException
+	{
+		return new LogSessionData( sessionId, wrapper );
+	}
+
+	@Override
+	SessionData loadSession( String sessionId ) throws SessionException
+	{
+		ByteBuffer body = read( sessionId );
+		return body == null ? null : new LogSessionData( body );
+	}
+
+	@Override
+	synchronized List<SessionData> getSessions() throws SessionException
+	{
+		List<SessionData> data = Lists.newArrayList();
+		List<String> expired = Lists.newArrayList();
+		long now = Timings.epoch();
+
+		for ( String sessionId : index.keySet() )
+		{
+			LogSessionData session = new LogSessionData( read( sessionId ) );
+			if ( session.timeout > 0 && session.timeout < now )
+				expired.add( sessionId );
+			else
+				data.add( session );
+		}
+
+		for ( String sessionId : expired )
+			delete( sessionId );
+
+		SessionManager.getLogger().info( String.format( "LogSession loaded %s sessions and removed %s expired sessions from the datastore!", data.size(), expired.size() ) );
+
+		return data;
+	}
+
+	@Override
+	synchronized void shutdown()
+	{
+		for ( Segment segment : segments.values() )
+			segment.close();
+		segments.clear();
+		index.clear();
+		active = null;
+	}
+}
@@ -41,7 +41,7 @@ public class MemoryDatastore extends SessionDatastore
 		}
 
 		@Override
-		void save() throws SessionException
+		void save( Snapshot snapshot ) throws SessionException
 		{
 			// Do Nothing
 		}
@@ -53,6 +53,12 @@ public class MemoryDatastore extends SessionDatastore
 		return new MemorySessionData( sessionId, wrapper );
 	}
 
+	@Override
+	SessionData loadSession( String sessionId ) throws SessionException
+	{
+		return null;
+	}
+
 	@Override
 	List<SessionData> getSessions() throws SessionException
 	{
@@ -35,7 +35,9 @@ import org.apache.commons.lang3.Validate;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,6 +53,26 @@ public final class Session extends AccountPermissible implements Kickable
 	// Indicates if the Session has been unloaded or destroyed!
 	boolean isInvalidated = false;
 
+	/**
+	 * New sessions are transient until they are written to, logged in or issue a nonce, see {@link #isTransient()}
+	 */
+	boolean transientSession = false;
+
+	/**
+	 * The site allows this session to be sealed into a client side cookie while anonymous, see {@link ClientSessionCookie}
+	 */
+	boolean clientSide = false;
+
+	/**
+	 * The variables were restored from a client side cookie
+	 */
+	boolean restoredFromClient = false;
+
+	/**
+	 * The variables were sealed into a client side cookie by the last response, so they are not persisted by the datastore
+	 */
+	private boolean clientSealed = false;
+
 	/**
 	 * The underlying data for this session<br>
 	 * Preserves access to the datastore and it's methods {@link SessionData#save()}, {@link SessionData#reload()}, {@link SessionData#destroy()}
@@ -69,9 +91,29 @@ public final class Session extends AccountPermissible implements Kickable
 	private final Set<String> dataChangeHistory = new HashSet<>();
 
 	/**
-	 * Holds a set of known IP Addresses
+	 * Hash of the variables as of the last {@link #save()}, detects changes made directly to the map, e.g., using the _SESSION binding
+	 */
+	private int savedDataHash;
+
+	/**
+	 * Holds the most recently used IP Addresses, oldest first and capped at sessions.maxKnownIps
+	 */
+	private final LinkedHashSet<String> knownIps = new LinkedHashSet<>();
+
+	/**
+	 * The account id this session is indexed under by the {@link SessionManager}
+	 */
+	String indexedAcctId = null;
+
+	/**
+	 * The epoch this session was last used by a request, idle sessions are unloaded by the {@link SessionManager}
+	 */
+	volatile long lastAccess = Timings.epoch();
+
+	/**
+	 * The expiry bucket this session is scheduled in by the {@link SessionManager}, guarded by this
 	 */
-	private final Set<String> knownIps = new HashSet<>();
+	long expiryBucket = -1;
 
 	/**
 	 * Reference to each wrapper that is utilizing this session<br>
@@ -126,7 +168,8 @@ public final class Session extends AccountPermissible implements Kickable
 
 		sessionKey = data.sessionName;
 		timeout = data.timeout;
-		knownIps.addAll( Splitter.on( "|" ).splitToList( data.ipAddress ) );
+		List<String> ips = Splitter.on( "|" ).omitEmptyStrings().splitToList( data.ipAddress );
+		knownIps.addAll( ips.subList( Math.max( 0, ips.size() - maxKnownIps() ), ips.size() ) );
 		site = SiteManager.instance().getSiteById( data.site );
 
 		if ( site == null )
@@ -136,7 +179,7 @@ public final class Session extends AccountPermissible implements Kickable
 		}
 
 		timeout = data.timeout;
-
+		savedDataHash = data.data.hashCode();
 
 		if ( timeout > 0 && timeout < Timings.epoch() )
 			throw new SessionException( String.format( "The session '%s' expired at epoch '%s', might have expired while offline or this is a bug!", sessionId, timeout ) );
@@ -167,7 +210,7 @@ public final class Session extends AccountPermissible implements Kickable
 
 	public boolean changesMade()
 	{
-		return !isInvalidated && dataChangeHistory.size() > 0;
+		return !isInvalidated && ( dataChangeHistory.size() > 0 || data.data.hashCode() != savedDataHash );
 	}
 
 	public void destroy() throws SessionException
@@ -191,7 +234,7 @@ public final class Session extends AccountPermissible implements Kickable
 			AccountAuthenticator.TOKEN.deleteToken( getVariable( "acctId" ), getVariable( "token" ) );
 		}
 
-		SessionManager.sessions.remove( this );
+		SessionManager.unregister( this );
 
 		for ( SessionWrapper wrap : wrappers )
 		{
@@ -206,7 +249,10 @@ public final class Session extends AccountPermissible implements Kickable
 		if ( sessionCookie != null )
 			sessionCookie.setMaxAge( 0 );
 
-		data.destroy();
+		// A transient session was never persisted, so there is nothing to remove from the datastore
+		SessionManager.instance().writeQueue.remove( this );
+		if ( !transientSession )
+			data.destroy();
 		isInvalidated = true;
 	}
 
@@ -247,6 +293,22 @@ public final class Session extends AccountPermissible implements Kickable
 		return Collections.unmodifiableMap( sessionCookies );
 	}
 
+	/**
+	 * @return The IP addresses this session was most recently used from, including those persisted by the datastore
+	 */
+	Set<String> getKnownIps()
+	{
+		synchronized ( knownIps )
+		{
+			return new LinkedHashSet<>( knownIps );
+		}
+	}
+
+	private static int maxKnownIps()
+	{
+		return Math.max( 1, AppConfig.get().getInt( "sessions.maxKnownIps", 8 ) );
+	}
+
 	public Map<String, String> getDataMap()
 	{
 		return data.data;
@@ -353,6 +415,26 @@ public final class Session extends AccountPermissible implements Kickable
 		return newSession;
 	}
 
+	/**
+	 * A transient session is a new session that has not been written to, logged in or issued a nonce.
+	 * It's not registered with the {@link SessionManager}, persisted by the datastore or sent to the client as a cookie,
+	 * so requests that never use their session, e.g., crawlers and static files, don't leave one behind.
+	 *
+	 * @return Is this session transient
+	 */
+	public boolean isTransient()
+	{
+		return transientSession && data.data.isEmpty() && nonce == null && !hasLogin();
+	}
+
+	/**
+	 * @return Are the variables of this session kept in a client side cookie instead of the datastore
+	 */
+	public boolean isClientSide()
+	{
+		return clientSealed;
+	}
+
 	public boolean isSet( String key )
 	{
 		return data.data.containsKey( key );
@@ -364,7 +446,9 @@ public final class Session extends AccountPermissible implements Kickable
 		if ( isInvalidated )
 			throw new IllegalStateException( "This session has been invalidated" );
 
-		return logout();
+		AccountResult result = logout();
+		saveWithoutException( true );
+		return result;
 	}
 
 	public Nonce nonce()
@@ -382,6 +466,7 @@ public final class Session extends AccountPermissible implements Kickable
 
 		timeout = 0;
 		data.timeout = 0;
+		SessionManager.rescheduleExpiry( this );
 	}
 
 	// TODO Sessions can outlive a login.
@@ -394,6 +479,40 @@ public final class Session extends AccountPermissible implements Kickable
 
 	}
 
+	/**
+	 * Seals the variables of an anonymous session into a client side cookie, see {@link ClientSessionCookie}.
+	 * Sessions that log in, issue a nonce or outgrow sessions.clientSide.maxSize are moved to the datastore,
+	 * in which case the client side cookie is expired.
+	 *
+	 * @param domain The root domain of the request
+	 * @return The cookie to send or null if there is none
+	 */
+	public HttpCookie processClientSideCookie( String domain )
+	{
+		clientSealed = false;
+		if ( isInvalidated || !clientSide || !transientSession )
+			return null;
+
+		String name = ClientSessionCookie.cookieName( getLocation() );
+
+		if ( nonce == null && !hasLogin() && ( restoredFromClient || !data.data.isEmpty() ) )
+		{
+			// The cookie is the only copy, so its expiration is extended with each response
+			if ( timeout > 0 )
+				rearmTimeout();
+
+			String sealed = ClientSessionCookie.seal( getLocation(), timeout, data.data );
+			if ( sealed != null )
+			{
+				clientSealed = true;
+				return new HttpCookie( name, sealed ).setDomain( "." + domain ).setPath( "/" ).setHttpOnly( true ).setExpiration( timeout );
+			}
+		}
+
+		// An expiration in the past removes the cookie from the client
+		return restoredFromClient ? new HttpCookie( name, "" ).setDomain( "." + domain ).setPath( "/" ).setHttpOnly( true ).setExpiration( 1 ) : null;
+	}
+
 	public void processSessionCookie( String domain )
 	{
 		if ( isInvalidated )
@@ -461,11 +580,29 @@ public final class Session extends AccountPermissible implements Kickable
 		timeout = Timings.epoch() + defaultTimeout + Math.min( requestCnt, 6 ) * 600;
 
 		data.timeout = timeout;
+		SessionManager.rescheduleExpiry( this );
 
 		if ( sessionCookie != null )
 			sessionCookie.setExpiration( timeout );
 	}
 
+	/**
+	 * Restores the variables of a client side session from its cookie
+	 *
+	 * @param value The cookie value
+	 * @return Was the cookie valid
+	 */
+	boolean restoreClientSide( String value )
+	{
+		if ( !ClientSessionCookie.open( getLocation(), value, data ) )
+			return false;
+
+		timeout = data.timeout;
+		savedDataHash = data.data.hashCode();
+		restoredFromClient = true;
+		return true;
+	}
+
 	public void regenNonce()
 	{
 		nonce = new Nonce( this );
@@ -485,7 +622,32 @@ public final class Session extends AccountPermissible implements Kickable
 
 		registerAttachment( wrapper );
 		wrappers.add( wrapper );
-		knownIps.add( wrapper.getIpAddress() );
+		lastAccess = Timings.epoch();
+
+		String ip = wrapper.getIpAddress();
+		if ( ip == null )
+			return;
+
+		boolean added;
+		List<String> forgotten = new ArrayList<>();
+		synchronized ( knownIps )
+		{
+			// Moved to the end so the least recently used addresses are forgotten first
+			added = !knownIps.remove( ip );
+			knownIps.add( ip );
+
+			Iterator<String> it = knownIps.iterator();
+			while ( knownIps.size() > maxKnownIps() )
+			{
+				forgotten.add( it.next() );
+				it.remove();
+			}
+		}
+
+		if ( added )
+			SessionManager.indexIp( this, ip );
+		for ( String old : forgotten )
+			SessionManager.unindexIp( this, old );
 	}
 
 	public void reload() throws SessionException
@@ -494,6 +656,7 @@ public final class Session extends AccountPermissible implements Kickable
 			throw new IllegalStateException( "This session has been invalidated" );
 
 		data.reload();
+		savedDataHash = data.data.hashCode();
 	}
 
 	/**
@@ -519,33 +682,64 @@ public final class Session extends AccountPermissible implements Kickable
 		unregisterAttachment( wrapper );
 	}
 
+	/**
+	 * Queues the session to be written to the datastore if changes were made, see {@link SessionWriteQueue}
+	 */
 	public void save() throws SessionException
 	{
 		save( false );
 	}
 
+	/**
+	 * @param force Write the session to the datastore now, regardless of changes being made
+	 */
 	public void save( boolean force ) throws SessionException
 	{
 		if ( isInvalidated )
 			throw new IllegalStateException( "This session has been invalidated" );
 
-		if ( force || changesMade() )
+		boolean promoted = false;
+		if ( transientSession )
+		{
+			if ( isTransient() || clientSealed && !force )
+				return;
+
+			// First use of a new session, it's now registered and persisted
+			transientSession = false;
+			SessionManager.register( this );
+			promoted = true;
+		}
+
+		if ( force || promoted || changesMade() )
 		{
 			data.sessionName = sessionKey;
 			data.sessionId = sessionId;
 
-			data.ipAddress = Joiner.on( "|" ).join( knownIps );
+			data.ipAddress = Joiner.on( "|" ).join( getKnownIps() );
+
+			if ( force )
+			{
+				SessionManager.instance().writeQueue.remove( this );
+				data.save();
+			}
+			else
+				SessionManager.instance().writeQueue.enqueue( this, data.snapshot() );
 
-			data.save();
 			dataChangeHistory.clear();
+			savedDataHash = data.data.hashCode();
 		}
 	}
 
 	public void saveWithoutException()
+	{
+		saveWithoutException( false );
+	}
+
+	public void saveWithoutException( boolean force )
 	{
 		try
 		{
-			save();
+			save( force );
 		}
 		catch ( SessionException e )
 		{
@@ -604,8 +798,10 @@ public final class Session extends AccountPermissible implements Kickable
 			SessionManager.getLogger().severe( "We had a problem making the current login resumable!", e );
 		}
 
+		SessionManager.indexAccount( this, getId() );
+
 		rearmTimeout();
-		saveWithoutException();
+		saveWithoutException( true );
 	}
 
 	@Override
@@ -619,7 +815,7 @@ public final class Session extends AccountPermissible implements Kickable
 		if ( SessionManager.isDebug() )
 			SessionManager.getLogger().info( EnumColor.DARK_AQUA + "Session Unloaded `" + this + "`" );
 
-		SessionManager.sessions.remove( this );
+		SessionManager.unregister( this );
 
 		for ( SessionWrapper wrap : wrappers )
 		{
@@ -0,0 +1,242 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.session;
+
+import com.chiorichan.AppConfig;
+import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Type;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes session variables for the datastores.
+ * <p>
+ * The binary format is {@code [byte version][byte flags][payload]}, the payload being a varint count followed by
+ * varint length prefixed UTF-8 keys and values (a value length of zero is null, otherwise length + 1).
+ * Payloads of at least sessions.codec.compressThreshold bytes are deflated when it makes them smaller.
+ * <p>
+ * Text based datastores store the binary format as Base64, or as JSON if sessions.codec.format is json.
+ * JSON written by previous versions is still read, so stored sessions migrate as they are saved.
+ */
+public final class SessionCodec
+{
+	static final byte VERSION = 1;
+
+	private static final byte FLAG_DEFLATE = 0x01;
+
+	private static final Gson GSON = new Gson();
+	private static final Type LEGACY_TYPE = new TypeToken<Map<String, String>>()
+	{
+		private static final long serialVersionUID = -1734352198651744570L;
+	}.getType();
+
+	private SessionCodec()
+	{
+
+	}
+
+	public static byte[] encode( Map<String, String> data )
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream( 32 + data.size() * 32 );
+
+		writeVarInt( out, data.size() );
+		for ( Entry<String, String> entry : data.entrySet() )
+		{
+			writeString( out, entry.getKey() );
+			writeString( out, entry.getValue() );
+		}
+
+		byte[] payload = out.toByteArray();
+		byte flags = 0;
+
+		int threshold = AppConfig.get().getInt( "sessions.codec.compressThreshold", 512 );
+		if ( threshold > 0 && payload.length >= threshold )
+		{
+			byte[] deflated = deflate( payload );
+			if ( deflated.length < payload.length )
+			{
+				payload = deflated;
+				flags |= FLAG_DEFLATE;
+			}
+		}
+
+		byte[] result = new byte[payload.length + 2];
+		result[0] = VERSION;
+		result[1] = flags;
+		System.arraycopy( payload, 0, result, 2, payload.length );
+		return result;
+	}
+
+	public static Map<String, String> decode( byte[] bytes ) throws SessionException
+	{
+		try
+		{
+			if ( bytes.length < 2 || bytes[0] != VERSION )
+				throw new SessionException( "The session data has an unsupported codec version" );
+
+			ByteBuffer buf = ByteBuffer.wrap( bytes, 2, bytes.length - 2 );
+			if ( ( bytes[1] & FLAG_DEFLATE ) != 0 )
+				buf = ByteBuffer.wrap( inflate( buf ) );
+
+			int size = readVarInt( buf );
+			Map<String, String> data = new HashMap<>( Math.max( 16, size * 2 ) );
+			for ( int i = 0; i < size; i++ )
+				data.put( readString( buf ), readString( buf ) );
+			return data;
+		}
+		catch ( BufferUnderflowException | IllegalArgumentException | DataFormatException e )
+		{
+			throw new SessionException( "The session data is corrupt", e );
+		}
+	}
+
+	/**
+	 * @param data The session variables
+	 * @return The variables encoded for text based datastores
+	 */
+	public static String encodeToString( Map<String, String> data )
+	{
+		if ( "json".equalsIgnoreCase( AppConfig.get().getString( "sessions.codec.format", "binary" ) ) )
+			return GSON.toJson( data );
+		return Base64.getEncoder().encodeToString( encode( data ) );
+	}
+
+	/**
+	 * @param str The variables as stored by a text based datastore, either Base64 or legacy JSON
+	 * @return The session variables
+	 * @throws SessionException if the data is corrupt
+	 */
+	public static Map<String, String> decodeString( String str ) throws SessionException
+	{
+		if ( str == null || str.isEmpty() )
+			return new HashMap<>();
+
+		// Base64 never starts with a brace, so this is JSON written by the previous format or sessions.codec.format json
+		if ( str.charAt( 0 ) == '{' )
+		{
+			Map<String, String> data = GSON.fromJson( str, LEGACY_TYPE );
+			return data == null ? new HashMap<>() : data;
+		}
+
+		try
+		{
+			return decode( Base64.getDecoder().decode( str ) );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			throw new SessionException( "The session data is corrupt", e );
+		}
+	}
+
+	private static byte[] deflate( byte[] payload )
+	{
+		Deflater deflater = new Deflater( Deflater.BEST_SPEED, true );
+		try
+		{
+			deflater.setInput( payload );
+			deflater.finish();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream( payload.length / 2 + 8 );
+			writeVarInt( out, payload.length );
+
+			byte[] chunk = new byte[Math.min( payload.length + 64, 8192 )];
+			while ( !deflater.finished() )
+				out.write( chunk, 0, deflater.deflate( chunk ) );
+			return out.toByteArray();
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate( ByteBuffer buf ) throws DataFormatException
+	{
+		byte[] result = new byte[readVarInt( buf )];
+		Inflater inflater = new Inflater( true );
+		try
+		{
+			inflater.setInput( buf.array(), buf.arrayOffset() + buf.position(), buf.remaining() );
+			int len = 0;
+			while ( len < result.length )
+			{
+				int n = inflater.inflate( result, len, result.length - len );
+				if ( n == 0 && ( inflater.finished() || inflater.needsInput() ) )
+					break;
+				len += n;
+			}
+			if ( len != result.length )
+				throw new DataFormatException( "The compressed session data is truncated" );
+			return result;
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
+	private static void writeVarInt( ByteArrayOutputStream out, int value )
+	{
+		while ( ( value & ~0x7F ) != 0 )
+		{
+			out.write( ( value & 0x7F ) | 0x80 );
+			value >>>= 7;
+		}
+		out.write( value );
+	}
+
+	private static int readVarInt( ByteBuffer buf )
+	{
+		int value = 0;
+		for ( int shift = 0; shift < 35; shift += 7 )
+		{
+			byte b = buf.get();
+			value |= ( b & 0x7F ) << shift;
+			if ( ( b & 0x80 ) == 0 )
+				return value;
+		}
+		throw new IllegalArgumentException( "Malformed varint" );
+	}
+
+	private static void writeString( ByteArrayOutputStream out, String str )
+	{
+		if ( str == null )
+		{
+			out.write( 0 );
+			return;
+		}
+
+		byte[] bytes = str.getBytes( StandardCharsets.UTF_8 );
+		writeVarInt( out, bytes.length + 1 );
+		out.write( bytes, 0, bytes.length );
+	}
+
+	private static String readString( ByteBuffer buf )
+	{
+		int len = readVarInt( buf );
+		if ( len == 0 )
+			return null;
+
+		byte[] bytes = new byte[len - 1];
+		buf.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+}
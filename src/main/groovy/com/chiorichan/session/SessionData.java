@@ -66,5 +66,44 @@ public abstract class SessionData
 	
 	abstract void destroy() throws SessionException;
 	
-	abstract void save() throws SessionException;
+	/**
+	 * Writes the current state to the datastore, from the calling thread
+	 */
+	final void save() throws SessionException
+	{
+		save( snapshot() );
+	}
+
+	/**
+	 * @return A copy of the persisted fields, so they can be written from another thread while requests modify the session
+	 */
+	Snapshot snapshot()
+	{
+		return new Snapshot( this );
+	}
+
+	abstract void save( Snapshot snapshot ) throws SessionException;
+
+	/**
+	 * The persisted fields of a session as of a {@link Session#save()}, taken on the request thread for the {@link SessionWriteQueue}
+	 */
+	static final class Snapshot
+	{
+		final Map<String, String> data;
+		final long timeout;
+		final String ipAddress;
+		final String sessionName;
+		final String sessionId;
+		final String site;
+
+		private Snapshot( SessionData source )
+		{
+			data = Maps.newHashMap( source.data );
+			timeout = source.timeout;
+			ipAddress = source.ipAddress;
+			sessionName = source.sessionName;
+			sessionId = source.sessionId;
+			site = source.site;
+		}
+	}
 }
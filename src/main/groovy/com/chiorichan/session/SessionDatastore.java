@@ -19,4 +19,25 @@ public abstract class SessionDatastore
 	abstract List<SessionData> getSessions() throws SessionException;
 	
 	abstract SessionData createSession( String sessionId, SessionWrapper wrapper ) throws SessionException;
+	
+	/**
+	 * @return The stored session or null if no session is stored with the id
+	 */
+	abstract SessionData loadSession( String sessionId ) throws SessionException;
+	
+	/**
+	 * Removes expired sessions from storage, called periodically since sessions are no longer all loaded
+	 */
+	void purgeExpired() throws SessionException
+	{
+		// Do Nothing
+	}
+	
+	/**
+	 * Called on shutdown once all sessions have been written
+	 */
+	void shutdown()
+	{
+		// Do Nothing
+	}
 }
@@ -17,20 +17,25 @@ import com.chiorichan.logger.Log;
 import com.chiorichan.logger.LogSource;
 import com.chiorichan.services.AppManager;
 import com.chiorichan.services.ServiceManager;
+import com.chiorichan.site.Site;
 import com.chiorichan.tasks.TaskManager;
 import com.chiorichan.tasks.TaskRegistrar;
 import com.chiorichan.tasks.Ticks;
 import com.chiorichan.tasks.Timings;
-import com.chiorichan.utils.UtilEncryption;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import org.apache.commons.lang3.text.WordUtils;
 
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -42,9 +47,38 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 	public static final int EXPIRED = 1;
 	public static final int MAXPERIP = 2;
 
-	static List<Session> sessions = Lists.newCopyOnWriteArrayList();
+	/**
+	 * Loaded sessions by session id
+	 */
+	static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+	/**
+	 * Secondary indexes, maintained as sessions are registered, gain IP addresses or login
+	 */
+	private static final Map<String, Set<Session>> sessionsByIp = new ConcurrentHashMap<>();
+	private static final Map<String, Set<Session>> sessionsByAccount = new ConcurrentHashMap<>();
+
+	/**
+	 * Loaded sessions bucketed by the expiry interval their timeout falls within, sessions without a timeout are not scheduled
+	 */
+	private static final ConcurrentSkipListMap<Long, Set<Session>> expiry = new ConcurrentSkipListMap<>();
+
+	/**
+	 * The width of the expiry buckets and how often they are checked in seconds
+	 */
+	private static int expiryInterval = 30;
+
 	static boolean isDebug = false;
 
+	/**
+	 * Session ids are supplied by the client cookie, so they're validated before being looked up in the datastore
+	 */
+	private static final Pattern SESSION_ID = Pattern.compile( "[A-Za-z0-9_-]{1,128}" );
+
+	private static final Base64.Encoder ID_ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	private static final ThreadLocal<SecureRandom> ID_RANDOM = ThreadLocal.withInitial( SecureRandom::new );
+
 	/**
 	 * Gets the Default Session Name
 	 *
@@ -110,8 +144,150 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 		return isDebug;// || Versioning.isDevelopment();
 	}
 
+	/**
+	 * Adds the session to the registry and indexes it by the IP addresses it is known by
+	 *
+	 * @return The registered session, which is an already registered session with the same id if one was loaded concurrently
+	 */
+	static Session register( Session session )
+	{
+		Session existing = sessions.putIfAbsent( session.getSessionId(), session );
+		if ( existing != null )
+			return existing;
+
+		schedule( session );
+		for ( String ip : session.getKnownIps() )
+		{
+			index( sessionsByIp, ip, session );
+			enforceIpLimit( ip, session );
+		}
+		return session;
+	}
+
+	/**
+	 * Removes the session from the registry and all indexes
+	 */
+	static void unregister( Session session )
+	{
+		sessions.remove( session.getSessionId(), session );
+		unschedule( session );
+		for ( String ip : session.getKnownIps() )
+			unindex( sessionsByIp, ip, session );
+		if ( session.indexedAcctId != null )
+			unindex( sessionsByAccount, session.indexedAcctId, session );
+	}
+
+	static void indexIp( Session session, String ip )
+	{
+		if ( sessions.get( session.getSessionId() ) == session )
+		{
+			index( sessionsByIp, ip, session );
+			enforceIpLimit( ip, session );
+		}
+	}
+
+	static void unindexIp( Session session, String ip )
+	{
+		unindex( sessionsByIp, ip, session );
+	}
+
+	/**
+	 * Moves a registered session to the expiry bucket of its current timeout, called when the timeout changes
+	 */
+	static void rescheduleExpiry( Session session )
+	{
+		if ( sessions.get( session.getSessionId() ) == session )
+			schedule( session );
+	}
+
+	private static void schedule( Session session )
+	{
+		long bucket = session.getTimeout() > 0 ? session.getTimeout() / expiryInterval : -1;
+
+		synchronized ( session )
+		{
+			if ( bucket == session.expiryBucket )
+				return;
+			if ( session.expiryBucket >= 0 )
+				unindex( expiry, session.expiryBucket, session );
+			session.expiryBucket = bucket;
+			if ( bucket >= 0 )
+				index( expiry, bucket, session );
+		}
+	}
+
+	private static void unschedule( Session session )
+	{
+		synchronized ( session )
+		{
+			if ( session.expiryBucket >= 0 )
+				unindex( expiry, session.expiryBucket, session );
+			session.expiryBucket = -1;
+		}
+	}
+
+	/**
+	 * Keeps the number of sessions known by an IP address within sessions.maxSessionsPerIP as they are indexed,
+	 * the sessions closest to timing out are recycled first. Only anonymous sessions no request is using are recycled,
+	 * so signed in users and in-flight requests are never cut off, even if that leaves the IP over the limit.
+	 *
+	 * @param ip   The IP address
+	 * @param keep The session being indexed, which is never recycled
+	 */
+	private static void enforceIpLimit( String ip, Session keep )
+	{
+		int maxPerIp = AppConfig.get().getInt( "sessions.maxSessionsPerIP", 6 );
+		Set<Session> set = sessionsByIp.get( ip );
+
+		if ( maxPerIp <= 0 || set == null || set.size() <= maxPerIp )
+			return;
+
+		List<Session> sorted = new ArrayList<>( set );
+		sorted.remove( keep );
+		sorted.sort( Comparator.comparingLong( s -> s.getTimeout() > 0 ? s.getTimeout() : Long.MAX_VALUE ) );
+
+		for ( int i = 0; i < sorted.size() && set.size() > maxPerIp; i++ )
+			try
+			{
+				Session session = sorted.get( i );
+				if ( !session.isInvalidated() && !session.hasLogin() && session.getSessionWrappers().isEmpty() )
+					session.destroy( SessionManager.MAXPERIP );
+			}
+			catch ( SessionException e )
+			{
+				getLogger().severe( "SessionException: " + e.getMessage() );
+			}
+	}
+
+	static void indexAccount( Session session, String acctId )
+	{
+		if ( session.indexedAcctId != null )
+			unindex( sessionsByAccount, session.indexedAcctId, session );
+		session.indexedAcctId = acctId;
+		if ( acctId != null )
+			index( sessionsByAccount, acctId, session );
+	}
+
+	private static <K> void index( Map<K, Set<Session>> index, K key, Session session )
+	{
+		if ( key != null && !"".equals( key ) )
+			index.computeIfAbsent( key, k -> ConcurrentHashMap.newKeySet() ).add( session );
+	}
+
+	private static <K> void unindex( Map<K, Set<Session>> index, K key, Session session )
+	{
+		if ( key != null )
+			index.computeIfPresent( key, ( k, set ) ->
+			{
+				set.remove( session );
+				return set.isEmpty() ? null : set;
+			} );
+	}
+
 	SessionDatastore datastore = null;
 
+	SessionWriteQueue writeQueue = null;
+
 	private boolean isCleanupRunning = false;
 
 	private SessionManager()
@@ -120,7 +296,7 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 	}
 
 	/**
-	 * Creates a fresh {@link Session} and saves it's reference.
+	 * Creates a fresh transient {@link Session}, it's registered and persisted once used, see {@link Session#isTransient()}
 	 *
 	 * @param wrapper The {@link SessionWrapper} to reference
 	 * @return The hot out of the oven Session
@@ -130,7 +306,7 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 	{
 		Session session = new Session( datastore.createSession( sessionIdBaker(), wrapper ) );
 		session.newSession = true;
-		sessions.add( session );
+		session.transientSession = true;
 		return session;
 	}
 
@@ -147,24 +323,49 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 	}
 
 	/**
-	 * Gets an unmodifiable list of currently loaded {@link Session}s
+	 * Gets an unmodifiable view of currently loaded {@link Session}s
 	 *
-	 * @return A unmodifiable list of sessions
+	 * @return A unmodifiable collection of sessions
 	 */
-	public List<Session> getSessions()
+	public Collection<Session> getSessions()
 	{
-		return Collections.unmodifiableList( sessions );
+		return Collections.unmodifiableCollection( sessions.values() );
 	}
 
 	/**
-	 * Retrieves a list of {@link Session}s based on the Ip Address provided.
+	 * Gets a loaded {@link Session} by its id
+	 *
+	 * @param sessionId The session id
+	 * @return The session or null if none is loaded
+	 */
+	public Session getSession( String sessionId )
+	{
+		return sessionId == null ? null : sessions.get( sessionId );
+	}
+
+	/**
+	 * Retrieves a list of {@link Session}s that have been used from the Ip Address provided.
 	 *
 	 * @param ipAddress The Ip Address to check for
 	 * @return A List of Sessions that matched
 	 */
 	public List<Session> getSessionsByIp( String ipAddress )
 	{
-		return sessions.stream().filter( s -> s.getIpAddresses() != null && s.getIpAddresses().contains( ipAddress ) ).collect( Collectors.toList() );
+		Set<Session> set = ipAddress == null ? null : sessionsByIp.get( ipAddress );
+		return set == null ? new ArrayList<>() : new ArrayList<>( set );
+	}
+
+	/**
+	 * Retrieves a list of {@link Session}s currently logged into the account provided.
+	 *
+	 * @param acctId The account id to check for
+	 * @return A List of Sessions that matched
+	 */
+	public List<Session> getSessionsByAccount( String acctId )
+	{
+		Set<Session> set = acctId == null ? null : sessionsByAccount.get( acctId );
+		// Entries are added on login, a session that has since logged out is filtered here
+		return set == null ? new ArrayList<>() : set.stream().filter( s -> s.hasLogin() && acctId.equals( s.getId() ) ).collect( Collectors.toList() );
 	}
 
 	/**
@@ -178,6 +379,7 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 		try
 		{
 			isDebug = AppConfig.get().getBoolean( "sessions.debug" );
+			expiryInterval = Math.max( 1, AppConfig.get().getInt( "sessions.expiryInterval", 30 ) );
 
 			String datastoreType = AppConfig.get().getString( "sessions.datastore", "file" );
 
@@ -187,6 +389,16 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 				else
 					datastore = new SqlDatastore();
 
+			if ( "log".equalsIgnoreCase( datastoreType ) )
+				try
+				{
+					datastore = new LogDatastore();
+				}
+				catch ( SessionException e )
+				{
+					getLogger().severe( "Session Manager's datastore is configured to use the session log but it failed to open. Falling back to the file datastore.", e );
+				}
+
 			if ( "file".equalsIgnoreCase( datastoreType ) || datastore == null )
 				if ( !FileDatastore.getSessionsDirectory().canWrite() )
 					getLogger().severe( "Session Manager's datastore is configured to use the file system but we can't write to the directory `" + FileDatastore.getSessionsDirectory().getAbsolutePath() + "`. Falling back to the memory datastore, i.e., sessions will not be saved." );
@@ -196,22 +408,26 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 			if ( datastore == null )
 				datastore = new MemoryDatastore();
 
-			for ( SessionData data : datastore.getSessions() )
-				try
-				{
-					sessions.add( new Session( data ) );
-				}
-				catch ( SessionException e )
-				{
-					// If there is a problem with the session, make warning and destroy
-					getLogger().warning( e.getMessage() );
-					data.destroy();
-				}
-				catch ( Throwable t )
-				{
-					t.printStackTrace();
-					data.destroy();
-				}
+			writeQueue = new SessionWriteQueue();
+
+			// Sessions are otherwise loaded on demand by loadSession()
+			if ( AppConfig.get().getBoolean( "sessions.preload", false ) )
+				for ( SessionData data : datastore.getSessions() )
+					try
+					{
+						register( new Session( data ) );
+					}
+					catch ( SessionException e )
+					{
+						// If there is a problem with the session, make warning and destroy
+						getLogger().warning( e.getMessage() );
+						data.destroy();
+					}
+					catch ( Throwable t )
+					{
+						t.printStackTrace();
+						data.destroy();
+					}
 		}
 		catch ( Throwable t )
 		{
@@ -229,6 +445,55 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 				sessionCleanup();
 			}
 		} );
+
+		TaskManager.instance().scheduleAsyncRepeatingTask( this, Ticks.SECOND_5, Ticks.SECOND * AppConfig.get().getInt( "sessions.writeBehindInterval", 5 ), writeQueue::flush );
+
+		TaskManager.instance().scheduleAsyncRepeatingTask( this, Ticks.SECOND * expiryInterval, Ticks.SECOND * expiryInterval, this::expireSessions );
+
+		/*
+		 * Expired sessions that are not loaded are removed from the datastore in the background, hourly
+		 */
+		TaskManager.instance().scheduleAsyncRepeatingTask( this, Ticks.MINUTE, Ticks.MINUTE * 60, () ->
+		{
+			try
+			{
+				datastore.purgeExpired();
+			}
+			catch ( SessionException e )
+			{
+				getLogger().severe( "There was a problem removing expired sessions from the datastore.", e );
+			}
+		} );
+	}
+
+	/**
+	 * Loads a stored session from the datastore
+	 *
+	 * @param sessionId The session id
+	 * @return The loaded session or null if it does not exist, is invalid or has expired
+	 * @throws SessionException If there was a problem reading the datastore
+	 */
+	Session loadSession( String sessionId ) throws SessionException
+	{
+		if ( sessionId == null || !SESSION_ID.matcher( sessionId ).matches() )
+			return null;
+
+		SessionData data = datastore.loadSession( sessionId );
+		if ( data == null )
+			return null;
+
+		try
+		{
+			return register( new Session( data ) );
+		}
+		catch ( SessionException e )
+		{
+			// Usually expired while unloaded
+			if ( isDebug() )
+				getLogger().info( e.getMessage() );
+			data.destroy();
+			return null;
+		}
 	}
 
 	@Override
@@ -247,10 +512,14 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 		synchronized ( sessions )
 		{
 			// Run session cleanup before saving sessions
+			expireSessions();
 			sessionCleanup();
 
+			// Write queued changes before they are overridden
+			writeQueue.flush();
+
 			// XXX Are we sure we want to override existing sessions without saving?
-			for ( Session session : sessions )
+			for ( Session session : sessions.values() )
 				session.reload();
 		}
 	}
@@ -261,70 +530,111 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 			return;
 		isCleanupRunning = true;
 
-		int cleanupCount = 0;
-
-		Set<String> knownIps = Sets.newHashSet();
-
-		for ( Session session : sessions )
-			if ( session.getTimeout() > 0 && session.getTimeout() < Timings.epoch() )
-				try
-				{
-					cleanupCount++;
-					session.destroy( SessionManager.EXPIRED );
-				}
-				catch ( SessionException e )
-				{
-					getLogger().severe( "SessionException: " + e.getMessage() );
-				}
-			else
-				knownIps.addAll( session.getIpAddresses() );
+		// Expiry and the per IP limit are handled as sessions are scheduled and indexed, so only idle sessions are left to unload
+		int cleanupCount = unloadIdleSessions();
 
-		int maxPerIp = AppConfig.get().getInt( "sessions.maxSessionsPerIP", 6 );
-
-		for ( String ip : knownIps )
-		{
-			List<Session> sessions = getSessionsByIp( ip );
-			if ( sessions.size() > maxPerIp )
-			{
-				Map<Long, Session> sorted = Maps.newTreeMap();
-
-				for ( Session s : sessions )
-				{
-					long key = s.getTimeout();
-					while ( sorted.containsKey( key ) )
-						key++;
-					sorted.put( key, s );
-				}
+		if ( cleanupCount > 0 )
+			getLogger().info( EnumColor.DARK_AQUA + "The cleanup task unloaded " + cleanupCount + " idle session(s)." );
 
-				Session[] sortedArray = sorted.values().toArray( new Session[0] );
+		isCleanupRunning = false;
+	}
 
-				for ( int i = 0; i < sortedArray.length - maxPerIp; i++ )
+	/**
+	 * Destroys the sessions in the expiry buckets that have passed, only the current bucket needs its timeouts checked
+	 */
+	public void expireSessions()
+	{
+		long now = Timings.epoch();
+		int expired = 0;
+
+		for ( Set<Session> bucket : expiry.headMap( now / expiryInterval, true ).values() )
+			for ( Session session : new ArrayList<>( bucket ) )
+				if ( session.isInvalidated() )
+					unschedule( session );
+				else if ( session.getTimeout() > 0 && session.getTimeout() < now )
 					try
 					{
-						cleanupCount++;
-						sortedArray[i].destroy( SessionManager.MAXPERIP );
+						expired++;
+						session.destroy( SessionManager.EXPIRED );
 					}
 					catch ( SessionException e )
 					{
 						getLogger().severe( "SessionException: " + e.getMessage() );
 					}
-			}
+
+		if ( expired > 0 )
+			getLogger().info( EnumColor.DARK_AQUA + "The expiry task recycled " + expired + " session(s)." );
+	}
+
+	/**
+	 * Unloads sessions unused for sessions.idleUnloadTime seconds and, if more than sessions.maxLoaded remain, the least recently used.
+	 * Unloaded sessions are written to the datastore first and loaded again on their next request.
+	 *
+	 * @return The number of unloaded sessions
+	 */
+	private int unloadIdleSessions()
+	{
+		long idleBefore = Timings.epoch() - AppConfig.get().getInt( "sessions.idleUnloadTime", 900 );
+		int maxLoaded = AppConfig.get().getInt( "sessions.maxLoaded", 50000 );
+		int count = 0;
+
+		List<Session> candidates = new ArrayList<>();
+		for ( Session session : sessions.values() )
+			if ( session.getSessionWrappers().isEmpty() )
+				if ( session.lastAccess < idleBefore )
+				{
+					if ( unloadSession( session ) )
+						count++;
+				}
+				else
+					candidates.add( session );
+
+		if ( maxLoaded > 0 && sessions.size() > maxLoaded )
+		{
+			candidates.sort( Comparator.comparingLong( s -> s.lastAccess ) );
+			for ( int i = 0; i < candidates.size() && sessions.size() > maxLoaded; i++ )
+				if ( unloadSession( candidates.get( i ) ) )
+					count++;
 		}
 
-		if ( cleanupCount > 0 )
-			getLogger().info( EnumColor.DARK_AQUA + "The cleanup task recycled " + cleanupCount + " session(s)." );
+		return count;
+	}
 
-		isCleanupRunning = false;
+	private boolean unloadSession( Session session )
+	{
+		if ( session.isInvalidated() )
+			return false;
+
+		try
+		{
+			session.save( true );
+			session.unload();
+			return true;
+		}
+		catch ( SessionException e )
+		{
+			getLogger().severe( "Failed to save the session '" + session.getSessionId() + "', it will remain loaded.", e );
+			return false;
+		}
 	}
 
 	/**
-	 * Generates a random Session Id based on randomness.
+	 * Generates a random Session Id, 128 bits from a per thread {@link SecureRandom} encoded as Base64url.
+	 * Ids already used by a loaded session are drawn again.
 	 *
 	 * @return Random Session Id as a string
 	 */
 	public String sessionIdBaker()
 	{
-		return UtilEncryption.md5( UtilEncryption.randomize( UtilEncryption.random(), "$e$$i0n_R%ND0Mne$$" ) + System.currentTimeMillis() );
+		byte[] bytes = new byte[16];
+		String sessionId;
+		do
+		{
+			ID_RANDOM.get().nextBytes( bytes );
+			sessionId = ID_ENCODER.encodeToString( bytes );
+		}
+		while ( sessions.containsKey( sessionId ) );
+		return sessionId;
 	}
 
 	/**
@@ -334,18 +644,27 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 	{
 		synchronized ( sessions )
 		{
-			for ( Session session : sessions )
+			for ( Session session : sessions.values() )
 				try
 				{
 					session.save();
-					session.unload();
 				}
 				catch ( SessionException e )
 				{
 					// Ignore
 				}
 
+			writeQueue.flush();
+
+			for ( Session session : sessions.values() )
+				session.unload();
+
+			datastore.shutdown();
+
 			sessions.clear();
+			expiry.clear();
+			sessionsByIp.clear();
+			sessionsByAccount.clear();
 		}
 	}
 
@@ -355,11 +674,33 @@ public class SessionManager implements TaskRegistrar, ServiceManager, LogSource
 		Session session = null;
 
 		if ( cookie != null )
-			session = sessions.stream().filter( s -> s != null && cookie.getValue().equals( s.getSessionId() ) ).findFirst().orElse( null );
+		{
+			session = getSession( cookie.getValue() );
+
+			// Raced with the cleanup task unloading it, so it's loaded again
+			if ( session != null && session.isInvalidated() )
+				session = null;
+
+			if ( session == null )
+				session = loadSession( cookie.getValue() );
+		}
 
 		if ( session == null )
+		{
 			session = createSession( wrapper );
 
+			// Anonymous sessions of sites with client side sessions are restored from their cookie, without touching the datastore
+			Site site = wrapper.getLocation();
+			if ( ClientSessionCookie.isEnabled( site ) )
+			{
+				session.clientSide = true;
+
+				HttpCookie sealed = wrapper.getServerCookie( ClientSessionCookie.cookieName( site ), null );
+				if ( sealed != null && !session.restoreClientSide( sealed.getValue() ) && isDebug() )
+					getLogger().info( "Rejected the client side session cookie from " + wrapper.getIpAddress() );
+			}
+		}
+
 		session.registerWrapper( wrapper );
 
 		// getLogger().debug( "Debug: IpAddress " + wrapper.getIpAddress() + " | Loaded? " + session.data.stale + " | Expires " + ( session.getTimeout() - CommonFunc.getEpoch() ) );
@@ -0,0 +1,86 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.session;
+
+import com.chiorichan.AppConfig;
+import com.chiorichan.tasks.TaskManager;
+import com.chiorichan.tasks.Timings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind queue for session saves, a session saved several times between flushes is only written once.
+ * Each save queues a snapshot of the session taken on the request thread, so the flush never reads variables a request is modifying.
+ * The queue is flushed by the {@link SessionManager} every sessions.writeBehindInterval seconds or once sessions.writeBehindBatchSize sessions are waiting.
+ */
+class SessionWriteQueue
+{
+	private final Map<Session, SessionData.Snapshot> dirty = new ConcurrentHashMap<>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final int batchSize = AppConfig.get().getInt( "sessions.writeBehindBatchSize", 200 );
+
+	void enqueue( Session session, SessionData.Snapshot snapshot )
+	{
+		if ( dirty.put( session, snapshot ) == null && dirty.size() >= batchSize && scheduled.compareAndSet( false, true ) )
+			TaskManager.instance().runTaskAsynchronously( SessionManager.instance(), () ->
+			{
+				scheduled.set( false );
+				flush();
+			} );
+	}
+
+	void remove( Session session )
+	{
+		dirty.remove( session );
+	}
+
+	int size()
+	{
+		return dirty.size();
+	}
+
+	/**
+	 * Writes all waiting sessions to their datastore
+	 */
+	synchronized void flush()
+	{
+		if ( dirty.isEmpty() )
+			return;
+
+		Timings.start( this );
+
+		List<Map.Entry<Session, SessionData.Snapshot>> batch = new ArrayList<>();
+		for ( Map.Entry<Session, SessionData.Snapshot> entry : dirty.entrySet() )
+			// A snapshot replaced since it was read stays queued for the next flush
+			if ( dirty.remove( entry.getKey(), entry.getValue() ) )
+				batch.add( entry );
+
+		int failed = 0;
+		for ( Map.Entry<Session, SessionData.Snapshot> entry : batch )
+			try
+			{
+				entry.getKey().data.save( entry.getValue() );
+			}
+			catch ( SessionException e )
+			{
+				failed++;
+				SessionManager.getLogger().severe( "We had a problem saving the session '" + entry.getKey().getSessionId() + "', changes were not saved to the datastore!", e );
+			}
+
+		if ( SessionManager.isDebug() )
+			SessionManager.getLogger().info( String.format( "Wrote %s session(s) to the datastore in %sms, %s failed", batch.size(), Timings.finish( this ), failed ) );
+		else
+			Timings.finish( this );
+	}
+}
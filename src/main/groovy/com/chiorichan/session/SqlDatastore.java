@@ -12,7 +12,6 @@ package com.chiorichan.session;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
-import java.util.Map;
 
 import com.chiorichan.AppConfig;
 import com.chiorichan.datastore.sql.bases.SQLDatastore;
@@ -20,17 +19,21 @@ import com.chiorichan.datastore.sql.query.SQLQuerySelect;
 import com.chiorichan.permission.PermissionManager;
 import com.chiorichan.tasks.Timings;
 import com.google.common.collect.Lists;
-import com.google.common.reflect.TypeToken;
-import com.google.gson.Gson;
 
 public class SqlDatastore extends SessionDatastore
 {
 	class SqlSessionData extends SessionData
 	{
+		/**
+		 * Is the session known to have a row, so it's saved with an UPDATE instead of first selecting it
+		 */
+		boolean stored = false;
+
 		SqlSessionData( ResultSet rs ) throws SessionException
 		{
 			super( SqlDatastore.this, true );
 			readSession( rs );
+			stored = true;
 		}
 
 		SqlSessionData( String sessionId, SessionWrapper wrapper ) throws SessionException
@@ -40,8 +43,6 @@ public class SqlDatastore extends SessionDatastore
 
 			ipAddress = wrapper.getIpAddress();
 			site = wrapper.getLocation().getId();
-
-			save();
 		}
 
 		@Override
@@ -72,10 +73,7 @@ public class SqlDatastore extends SessionDatastore
 				site = rs.getString( "sessionSite" );
 
 				if ( !rs.getString( "data" ).isEmpty() )
-					data = new Gson().fromJson( rs.getString( "data" ), new TypeToken<Map<String, String>>()
-					{
-						private static final long serialVersionUID = -1734352198651744570L;
-					}.getType() );
+					data = SessionCodec.decodeString( rs.getString( "data" ) );
 			}
 			catch ( SQLException e )
 			{
@@ -101,27 +99,25 @@ public class SqlDatastore extends SessionDatastore
 		}
 
 		@Override
-		void save() throws SessionException
+		void save( Snapshot snapshot ) throws SessionException
 		{
 			try
 			{
-				String dataJson = new Gson().toJson( data );
+				String dataEncoded = SessionCodec.encodeToString( snapshot.data );
 				SQLDatastore sql = AppConfig.get().getDatabase();
 
 				if ( sql == null )
 					throw new SessionException( "Sessions can't be stored in a SQL Database without a properly configured server database." );
 
-				SQLQuerySelect select = sql.table( "sessions" ).select().where( "sessionId" ).matches( sessionId ).execute();
-				// query( "SELECT * FROM `sessions` WHERE `sessionId` = '" + sessionId + "';" );
+				/*
+				 * Upsert without a dialect specific statement, rows known to exist are updated directly
+				 * and only a missed update, e.g., the row was removed externally, falls back to an insert.
+				 */
+				if ( stored && sql.table( "sessions" ).update().value( "timeout", snapshot.timeout ).value( "ipAddress", snapshot.ipAddress ).value( "sessionName", snapshot.sessionName ).value( "sessionSite", snapshot.site ).value( "data", dataEncoded ).where( "sessionId" ).matches( snapshot.sessionId ).execute().rowCount() > 0 )
+					return;
 
-				if ( select.rowCount() < 1 )
-					sql.table( "sessions" ).insert().value( "sessionId", sessionId ).value( "timeout", timeout ).value( "ipAddress", ipAddress ).value( "sessionName", sessionName ).value( "sessionSite", site ).value( "data", dataJson ).execute();
-				// sql.queryUpdate( "INSERT INTO `sessions` (`sessionId`, `timeout`, `ipAddress`, `sessionName`, `sessionSite`, `data`) VALUES ('" + sessionId + "', '" + timeout + "', '" + ipAddress + "', '" + sessionName + "', '" + site + "', '"
-				// + dataJson + "');" );
-				else
-					sql.table( "sessions" ).update().value( "timeout", timeout ).value( "ipAddress", ipAddress ).value( "sessionName", sessionName ).value( "sessionSite", site ).value( "data", dataJson ).where( "sessionId" ).matches( sessionId ).execute();
-				// sql.queryUpdate( "UPDATE `sessions` SET `data` = '" + dataJson + "', `timeout` = '" + timeout + "', `sessionName` = '" + sessionName + "', `ipAddress` = '" + ipAddress + "', `sessionSite` = '" + site + "' WHERE `sessionId` = '"
-				// + sessionId + "';" );
+				sql.table( "sessions" ).insert().value( "sessionId", snapshot.sessionId ).value( "timeout", snapshot.timeout ).value( "ipAddress", snapshot.ipAddress ).value( "sessionName", snapshot.sessionName ).value( "sessionSite", snapshot.site ).value( "data", dataEncoded ).execute();
+				stored = true;
 			}
 			catch ( SQLException e )
 			{
@@ -136,6 +132,45 @@ public class SqlDatastore extends SessionDatastore
 		return new SqlSessionData( sessionId, wrapper );
 	}
 
+	@Override
+	SessionData loadSession( String sessionId ) throws SessionException
+	{
+		SQLDatastore sql = AppConfig.get().getDatabase();
+
+		if ( sql == null )
+			throw new SessionException( "Sessions can't be stored in a SQL Database without a properly configured server database." );
+
+		try
+		{
+			SQLQuerySelect select = sql.table( "sessions" ).select().where( "sessionId" ).matches( sessionId ).execute();
+			return select.rowCount() < 1 ? null : new SqlSessionData( select.result() );
+		}
+		catch ( SQLException e )
+		{
+			throw new SessionException( e );
+		}
+	}
+
+	@Override
+	void purgeExpired() throws SessionException
+	{
+		SQLDatastore sql = AppConfig.get().getDatabase();
+
+		if ( sql == null )
+			return;
+
+		try
+		{
+			int expired = sql.table( "sessions" ).delete().where( "timeout" ).moreThan( 0 ).where( "timeout" ).lessThan( Timings.epoch() ).execute().rowCount();
+			if ( expired > 0 )
+				SessionManager.getLogger().info( String.format( "SqlSession removed %s expired sessions from the datastore!", expired ) );
+		}
+		catch ( SQLException e )
+		{
+			throw new SessionException( e );
+		}
+	}
+
 	@Override
 	List<SessionData> getSessions() throws SessionException
 	{
@@ -0,0 +1,312 @@
+/**
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ * Copyright (c) 2017 Joel Greene <joel.greene@penoaks.com>
+ * Copyright (c) 2017 Penoaks Publishing LLC <development@penoaks.com>
+ *
+ * All Rights Reserved.
+ */
+package com.chiorichan.site;
+
+import com.chiorichan.AppConfig;
+import com.chiorichan.ServerFileWatcher;
+import com.chiorichan.configuration.ConfigurationSection;
+import com.chiorichan.factory.FileInterpreter;
+import com.chiorichan.factory.ScriptingContext;
+import com.chiorichan.factory.ScriptingFactory;
+import com.chiorichan.factory.ScriptingResult;
+import com.chiorichan.factory.event.PostJSMinProcessor;
+import com.chiorichan.lang.IException;
+import com.chiorichan.tasks.Timings;
+import com.chiorichan.utils.UtilEncryption;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the asset bundles listed in the site configuration under {@code assets.bundles}, e.g.
+ * <pre>
+ * assets:
+ *   bundles:
+ *     app:
+ *     - js/jquery.js
+ *     - js/app.coffee
+ * </pre>
+ * Each bundle's files are evaluated through the scripting factory, so Less and CoffeeScript are compiled,
+ * then concatenated, minified (JavaScript only) and written to a content hashed file that can be served with
+ * immutable cache headers. Bundles are rebuilt on the next request after any of their files change, or any file
+ * those resolved when last built, e.g., Less imports and included scripts.
+ * The previous build is still served for {@code assets.gracePeriod} seconds (default 3600) after being replaced,
+ * so pages rendered before the change keep working, older builds are deleted. Relative {@code url(...)} references
+ * in stylesheets are rewritten to absolute paths, as the bundle is served from {@link #URI_PREFIX} instead of the stylesheet's own directory.
+ */
+public class AssetBundles
+{
+	public static final String URI_PREFIX = "/wisp/bundles/";
+
+	private static final Pattern CSS_URL = Pattern.compile( "url\\(\\s*(['\"]?)([^'\")]+)\\1\\s*\\)" );
+
+	static class Bundle
+	{
+		final String name;
+		final List<File> files;
+		final String extension;
+		volatile File output = null;
+		volatile File previous = null;
+		volatile long previousUntil = 0;
+		volatile Set<File> dependencies = Collections.emptySet();
+		volatile boolean dirty = true;
+
+		Bundle( String name, List<File> files )
+		{
+			this.name = name;
+			this.files = files;
+
+			String first = files.isEmpty() ? "" : files.get( 0 ).getName();
+			extension = first.endsWith( ".css" ) || first.endsWith( ".less" ) ? "css" : "js";
+		}
+	}
+
+	private final Site site;
+	private final Map<String, Bundle> bundles = new ConcurrentHashMap<>();
+	private final Set<File> watched = ConcurrentHashMap.newKeySet();
+
+	AssetBundles( Site site )
+	{
+		this.site = site;
+
+		ConfigurationSection section = site.getConfig().getConfigurationSection( "assets.bundles" );
+		if ( section != null )
+			for ( String name : section.getKeys() )
+			{
+				List<File> files = new ArrayList<>();
+				for ( String path : section.getStringList( name ) )
+				{
+					if ( new File( path ).isAbsolute() || path.contains( ".." ) )
+						throw new SecurityException( String.format( "Asset bundle '%s' may only contain files within the site public directory, found '%s'", name, path ) );
+					files.add( new File( site.directoryPublic(), path ).getAbsoluteFile() );
+				}
+				bundles.put( name, new Bundle( name, files ) );
+			}
+	}
+
+	/**
+	 * @param name The bundle name
+	 * @return The fingerprinted uri of the bundle or null if no such bundle is configured
+	 * @throws IOException if the bundle could not be built
+	 */
+	public String url( String name ) throws IOException
+	{
+		Bundle bundle = bundles.get( name );
+		if ( bundle == null )
+			return null;
+		return URI_PREFIX + build( bundle ).getName();
+	}
+
+	/**
+	 * @param fileName The fingerprinted bundle file name, as found in the uri
+	 * @return The built bundle file or null if it is neither the current build nor a recently replaced build of any bundle
+	 * @throws IOException if the bundle could not be built
+	 */
+	public File file( String fileName ) throws IOException
+	{
+		int inx = fileName.lastIndexOf( '-' );
+		Bundle bundle = inx < 0 ? null : bundles.get( fileName.substring( 0, inx ) );
+		if ( bundle == null )
+			return null;
+
+		File output = build( bundle );
+		if ( output.getName().equals( fileName ) )
+			return output;
+
+		File previous = bundle.previous;
+		if ( previous != null && previous.getName().equals( fileName ) )
+		{
+			if ( Timings.epoch() < bundle.previousUntil && previous.exists() )
+				return previous;
+
+			synchronized ( bundle )
+			{
+				if ( bundle.previous == previous )
+				{
+					bundle.previous = null;
+					previous.delete();
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Builds are serialized per bundle, so a slow bundle never holds up requests for the others
+	 */
+	private File build( Bundle bundle ) throws IOException
+	{
+		File output = bundle.output;
+		if ( !bundle.dirty && output != null && output.exists() )
+			return output;
+
+		synchronized ( bundle )
+		{
+			return rebuild( bundle );
+		}
+	}
+
+	private File rebuild( Bundle bundle ) throws IOException
+	{
+		if ( !bundle.dirty && bundle.output != null && bundle.output.exists() )
+			return bundle.output;
+
+		// Cleared before reading, so a change made during the build marks it dirty again
+		bundle.dirty = false;
+
+		StringBuilder sb = new StringBuilder();
+		ScriptingFactory factory = ScriptingFactory.create( new HashMap<>() );
+
+		for ( File file : bundle.files )
+		{
+			watch( file.getParentFile() );
+
+			if ( !file.exists() )
+				throw new IOException( String.format( "The file '%s' in asset bundle '%s' does not exist", file, bundle.name ) );
+
+			ScriptingResult result = factory.eval( ScriptingContext.fromFile( new FileInterpreter( file ) ).site( site ) );
+
+			if ( result.hasNonIgnorableExceptions() )
+			{
+				bundle.dirty = true;
+				IException e = result.getExceptions()[0];
+				throw new IOException( String.format( "Failed to evaluate '%s' in asset bundle '%s': %s", file, bundle.name, e.getMessage() ), e instanceof Throwable ? ( Throwable ) e : null );
+			}
+
+			if ( "js".equals( bundle.extension ) )
+				sb.append( result.getString() ).append( ";\n" );
+			else
+				sb.append( rewriteUrls( file, result.getString() ) ).append( "\n" );
+		}
+
+		Set<File> dependencies = new HashSet<>( factory.dependencies() );
+		for ( File file : dependencies )
+			watch( file.getParentFile() );
+		bundle.dependencies = dependencies;
+
+		String content = sb.toString();
+		if ( "js".equals( bundle.extension ) && AppConfig.get().getBoolean( "advanced.processors.minifierJSProcessorEnabled", true ) )
+		{
+			String minified = PostJSMinProcessor.minify( bundle.name + ".js", content );
+			if ( minified != null )
+				content = minified;
+		}
+
+		String hash = UtilEncryption.md5( content ).substring( 0, 12 );
+		File dir = new File( site.directoryTemp(), "bundles" );
+		File output = new File( dir, bundle.name + "-" + hash + "." + bundle.extension );
+
+		if ( !output.exists() )
+		{
+			if ( !dir.exists() )
+				dir.mkdirs();
+
+			File tmp = File.createTempFile( bundle.name, ".tmp", dir );
+			Files.write( tmp.toPath(), content.getBytes( StandardCharsets.UTF_8 ) );
+			Files.move( tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+
+		// The previous build is left in place and still served for a while, for pages that still reference it
+		File previous = bundle.output;
+		if ( previous != null && !previous.equals( output ) )
+		{
+			bundle.previous = previous;
+			bundle.previousUntil = Timings.epoch() + site.getConfig().getInt( "assets.gracePeriod", 3600 );
+		}
+		else if ( Timings.epoch() >= bundle.previousUntil )
+			bundle.previous = null;
+		bundle.output = output;
+		prune( bundle, dir );
+		SiteManager.getLogger().fine( String.format( "Built asset bundle '%s' for site '%s' as '%s'", bundle.name, site.getId(), output.getName() ) );
+
+		return output;
+	}
+
+	/**
+	 * Deletes the builds of the bundle that are neither current nor within their grace period, including those left over from before a restart
+	 */
+	private void prune( Bundle bundle, File dir )
+	{
+		Pattern built = Pattern.compile( Pattern.quote( bundle.name ) + "-[0-9a-f]{12}\\." + bundle.extension );
+		File[] files = dir.listFiles( ( d, name ) -> built.matcher( name ).matches() );
+		if ( files != null )
+			for ( File file : files )
+				if ( !file.equals( bundle.output ) && !file.equals( bundle.previous ) )
+					file.delete();
+	}
+
+	/**
+	 * Rewrites the relative url references of a stylesheet to absolute paths, resolved against the stylesheet's directory
+	 */
+	private String rewriteUrls( File file, String css )
+	{
+		String dir = site.directoryPublic().getAbsoluteFile().toPath().relativize( file.getParentFile().toPath() ).toString().replace( File.separatorChar, '/' );
+		URI base = URI.create( "/" + ( dir.isEmpty() ? "" : dir + "/" ) );
+
+		Matcher matcher = CSS_URL.matcher( css );
+		StringBuffer sb = new StringBuffer();
+		while ( matcher.find() )
+		{
+			String url = matcher.group( 2 ).trim();
+			String rewritten = url;
+
+			if ( !url.startsWith( "/" ) && !url.startsWith( "#" ) && !url.startsWith( "data:" ) && !url.contains( "://" ) )
+				try
+				{
+					rewritten = base.resolve( url ).normalize().toString();
+				}
+				catch ( IllegalArgumentException e )
+				{
+					// Not a valid uri, left as is
+				}
+
+			matcher.appendReplacement( sb, Matcher.quoteReplacement( "url(" + matcher.group( 1 ) + rewritten + matcher.group( 1 ) + ")" ) );
+		}
+		matcher.appendTail( sb );
+		return sb.toString();
+	}
+
+	private void watch( File dir )
+	{
+		if ( dir == null || !watched.add( dir ) )
+			return;
+
+		try
+		{
+			ServerFileWatcher.instance().register( dir, ( kind, changed, isDirectory ) ->
+			{
+				File file = changed.getAbsoluteFile();
+				for ( Bundle bundle : bundles.values() )
+					if ( bundle.files.contains( file ) || bundle.dependencies.contains( file ) )
+						bundle.dirty = true;
+			} );
+		}
+		catch ( IOException e )
+		{
+			watched.remove( dir );
+			SiteManager.getLogger().warning( "Failed to watch directory '" + dir + "' for asset bundle changes: " + e.getMessage() );
+		}
+	}
+}
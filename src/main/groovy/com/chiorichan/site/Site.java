@@ -87,6 +87,8 @@ public class Site implements AccountLocation
 	private final String encryptionKey;
 	/* URL routes */
 	private final Routes routes;
+	/* Asset bundles, loaded on first use */
+	private AssetBundles assetBundles = null;
 	/* Environment variables */
 	final Env env;
 	/* Language strings */
@@ -588,6 +590,13 @@ public class Site implements AccountLocation
 		return routes;
 	}
 
+	public synchronized AssetBundles getAssetBundles()
+	{
+		if ( assetBundles == null )
+			assetBundles = new AssetBundles( this );
+		return assetBundles;
+	}
+
 	/**
 	 * Gets the site configured Session Key from configuration.
 	 *